@@ -18,9 +18,24 @@ public class GcStressTest {
 		JVMHelp.wr((char)('0' + val % 10));
 	}
 
+	/**
+	 * Cores 1..n-1 only allocate, core 0 reports.
+	 */
+	static void allocLoop() {
+		for (;;) {
+			int[] a = new int[32];
+			a[0] = 1;
+		}
+	}
+
 	public static void main(String[] args) {
 
+		if (Native.rdMem(Const.IO_CPU_ID) != 0) {
+			allocLoop();
+		}
 		JVMHelp.wr("GC test start\n");
+		// start the other cores, if any
+		Native.wr(1, Const.IO_SIGNAL);
 		int w = 0;
 
 		for (int round = 0; ; ++round) {
@@ -69,11 +69,11 @@ public class GC {
 	 */
 	static final int HANDLE_SIZE = 8;
 	/**
-	 * Maximum handle count.  Caps the handle table to avoid O(N) GC sweep
-	 * time explosion on large memories (256 MB+).  65536 handles = 512 K
-	 * words of handle area; sweep takes ~6 ms at 100 MHz.
+	 * Maximum handle count of the static segment.  Caps the handle table to avoid O(N) GC sweep
+	 * time explosion on large memories.  16384 handles = 128 K words of
+	 * handle area, the dynamic segment adds more on demand.
 	 */
-	static final int MAX_HANDLES = 65536;
+	static final int MAX_HANDLES = 16384;
 
 	/**
 	 * The handle contains following data:
@@ -83,6 +83,7 @@ public class GC {
 	 * 3 type info: object, primitve array or ref array
 	 * 4 pointer to next handle of same type (used or free)
 	 * 5 gray list
+	 * 6 remembered set of the nursery
 	 *
 	 * !!! be carefule when changing the handle structure, it's
 	 * used in System.arraycopy() and probably in jvm.asm!!!
@@ -108,6 +109,12 @@ public class GC {
 	// 0 a plain object
 	public static final int IS_OBJ = 0;
 	public static final int IS_REFARR = 1;
+	/**
+	 * Flag of an array in the large-object space, the type
+	 * is in the bits of TYPE_MASK.
+	 */
+	static final int IS_LARGE = 0x100;
+	static final int TYPE_MASK = 0xff;
 
 	/**
 	 * Free and Use list.
@@ -126,6 +133,21 @@ public class GC {
 	static final int TYPICAL_OBJ_SIZE = 5;
 	static int handle_cnt;
 
+	/**
+	 * The handles are in two segments: the static one of handle_cnt
+	 * handles at mem_start and a dynamic one at the end of memory,
+	 * [handleTop, memEnd). The dynamic segment grows down into the
+	 * heap (or the large-object space below it) in chunks of
+	 * HANDLE_CHUNK handles at GC time when the handles run short,
+	 * and gives free chunks back.
+	 */
+	static final int HANDLE_CHUNK = 64;
+	static final int CHUNK_WORDS = HANDLE_CHUNK*HANDLE_SIZE;
+	static int handleTop;
+	static int memEnd;
+	/** The handles ran out before the heap. */
+	static boolean handlesShort;
+
 	/**
 	 * Start of the single heap region (after handle area).
 	 * Mark-compact uses one contiguous heap instead of two semi-spaces.
@@ -168,6 +190,11 @@ public class GC {
 
 	static int addrStaticRefs;
 
+	/**
+	 * JOPizer (-Dmgci=true) wrote call site maps below the method code
+	 */
+	static boolean stackMaps;
+
 	static Object mutex;
 
 	static boolean concurrentGc;
@@ -196,13 +223,202 @@ public class GC {
 	/** Number of objects to compact per compact increment. */
 	static final int COMPACT_STEP = 10;
 
+	// --- Pacing of the incremental GC ---
+	//
+	// The work of a cycle is counted in gray objects plus compacted
+	// handles. At the start of a cycle the work of the last cycle is
+	// taken as estimate and spread over the free words that may be
+	// allocated before the heap is exhausted. The allocators pay
+	// for their words with that rate, a big array pays more than a
+	// small object. The rate is a power of two, no multiply on JOP.
+
+	/** Default time budget of one increment in microseconds. */
+	static final int GC_PAUSE_US = 500;
+
+	/** Time budget of one increment in microseconds, 0 is unlimited. */
+	static int pauseBudget = GC_PAUSE_US;
+
+	/** Work units per allocated word as shift, negative shifts right. */
+	static int paceShift;
+	/** Words allocated since the start of the running cycle. */
+	static int cycleAlloc;
+	/** Work done in the running cycle. */
+	static int cycleWork;
+	/** Work of the last cycle, the estimate for the next one. */
+	static int lastWork;
+
 	// --- Compact phase state ---
 	static int compactList;    // sorted snapshot of useList for compaction
 	static int compactDst;     // compaction destination pointer
 	static int newUseList;     // rebuilt use list during compaction
+	static int newUseTail;     // last handle of newUseList
+	static int compactTop;     // allocPtr when compaction started
+
+	// =========================================================================
+	// Per-core thread-local allocation buffers (TLAB)
+	// =========================================================================
+
+	/**
+	 * Words carved from allocPtr for one TLAB. Objects larger than
+	 * a quarter of it are allocated with the global lock.
+	 */
+	static final int TLAB_SIZE = 512;
+	static final int TLAB_MAX_OBJ = TLAB_SIZE >> 2;
+	/** Free handles taken from freeList per refill. */
+	static final int TLAB_HANDLES = 16;
+
+	/**
+	 * The per-core state is a raw memory block of CORE_WORDS words
+	 * at coreBase+(cpuId<<CORE_SHIFT), between the handle area and
+	 * the heap. It is not a Java array, as it must not move during
+	 * compaction. The block after the last core holds the parallel
+	 * GC control words, followed by one mark block per core.
+	 */
+	static final int CORE_SHIFT = 5;
+	static final int CORE_WORDS = 1<<CORE_SHIFT;
+	static final int TLAB_PTR = 0;		// allocation pointer, grows down
+	static final int TLAB_LIMIT = 1;	// lower end of the buffer
+	static final int TLAB_FREE = 2;		// private free handle list
+	static final int TLAB_USE = 3;		// private use list
+	static final int TLAB_TAIL = 4;		// last handle of the use list
+	static final int TLAB_BUSY = 5;		// core is in tlabAlloc()
+	static final int CORE_ACK = 6;		// last parallel GC phase done
+	static final int CORE_OVERFLOW = 7;	// mark stack overflowed
+	static final int CORE_HUNGRY = 8;	// out of mark work
+	static final int CORE_GIFT = 9;		// handles given by the previous core
+	static final int CORE_TAKEN = 10;	// gifts taken so far
+	static final int CORE_LO = 11;		// compaction: address range
+	static final int CORE_HI = 12;
+	static final int CORE_STEP = 13;	// 1 use list read, 2 sorted
+	static final int CORE_LIVE = 14;	// live words in the range
+	static final int CORE_SRC_END = 15;	// end of the sources or 0
+	static final int CORE_PROGRESS = 16;	// sources below are moved
+	static final int CORE_USE = 17;		// compacted handles
+	static final int CORE_USE_TAIL = 18;
+	static final int CORE_FREE = 19;	// freed handles
+	static final int CORE_FREE_TAIL = 20;
+	static final int CORE_DST = 21;		// end of the compacted range
+	static final int CORE_SATB = 22;	// entries in the SATB buffer
+	static final int CORE_ROOTS = 23;	// stack roots not yet pushed
+
+	static int coreBase;
+	static int cpuCnt;
+	static boolean useTlab;
+
+	// =========================================================================
+	// Parallel stop-the-world collection
+	// =========================================================================
+
+	/**
+	 * Phases in the control word. The other cores poll it in
+	 * tlabAlloc() and work as GC threads in gcWorker().
+	 */
+	static final int PAR_IDLE = 0;
+	static final int PAR_JOIN = 1;
+	static final int PAR_MARK = 2;
+	static final int PAR_COMPACT = 3;
+
+	/** Time for the other cores to join before they are halted. */
+	static final int GC_JOIN_US = 1000;
+
+	/** Second word of the control block: marking has finished. */
+	static final int CTRL_MARK_DONE = 1;
+
+	/**
+	 * The mark block of a core: its mark stack, the gift area
+	 * written by the previous core and a histogram of the live
+	 * words per heap slice of 1<<histShift words.
+	 */
+	static final int MARK_SHIFT = 10;
+	static final int MARK_WORDS = 1<<MARK_SHIFT;
+	static final int MARK_STACK = 896;
+	static final int MARK_GIFT = MARK_STACK;
+	static final int GIFT_MAX = 64;
+	static final int MARK_HIST = MARK_GIFT+GIFT_MAX;
+	static final int HIST_CNT = MARK_WORDS-MARK_HIST;
+
+	static final int PROGRESS_DONE = 0x7fffffff;
+
+	static int gcCtrl;
+	static int markBase;
+	static int satbBase;
+	static int histShift;
+	static boolean parallelGc;
+
+	// =========================================================================
+	// Snapshot-at-beginning write barrier
+	// =========================================================================
+
+	/**
+	 * The reference stores take the barrier only during an
+	 * incremental GC cycle (or with the concurrent GC) and log the
+	 * overwritten value while the GC marks. Each core logs into its
+	 * own buffer of SATB_SIZE words after the mark blocks. A full
+	 * buffer is greyed under the mutex in one batch, the collector
+	 * takes the rest when marking ends.
+	 */
+	static final int SATB_SHIFT = 5;
+	static final int SATB_SIZE = 1<<SATB_SHIFT;
+
+	static boolean barrier;
+
+	// =========================================================================
+	// Generational nursery
+	// =========================================================================
+
+	/**
+	 * The optional young generation are the top nurserySize words
+	 * of the heap, allocation bumps down from there. Young objects
+	 * are the ones above copyPtr, their handles are in front of the
+	 * old ones in the use list. A minor collection traces them from
+	 * the roots and the remembered set and slides the survivors
+	 * down to copyPtr. The barrier of the reference stores
+	 * remembers old objects that get a young reference, the set is
+	 * threaded through the handles.
+	 */
+	static final int OFF_REM = 6;
+	static final int REM_END = -1;
+
+	/** Size of the nursery in words, 0 when off. */
+	static int nurserySize;
+	/** Old objects with young references. */
+	static int remSet;
+
+	// =========================================================================
+	// Large-object space
+	// =========================================================================
+
+	/**
+	 * Arrays of LARGE_OBJ words and more are allocated in the
+	 * large-object space [losBase, handleTop) between the heap and
+	 * the dynamic handles. They are never slid, a collection only
+	 * sweeps them. Their handles are in largeList instead of the
+	 * use list. The free blocks are a list in address order, the
+	 * first word of a block is its size, the second the next block.
+	 * Sizes are rounded to even words, so a block holds both.
+	 * <p>
+	 * The space grows at GC time by the words of the large arrays
+	 * that did not fit, they were allocated in the heap. The next
+	 * compaction moves the live ones into the new blocks, that is
+	 * their last copy. A free block at the bottom goes back to the
+	 * heap after LARGE_IDLE collections without a miss. Objects in
+	 * the space are old for the nursery.
+	 */
+	static final int LARGE_OBJ = 256;
+	static final int LARGE_IDLE = 4;
+	static int losBase;
+	static int losFree;
+	static int largeList;
+	/** Words of large arrays that went to the heap since the last collection. */
+	static int largeShort;
+	/** Collections without a miss. */
+	static int largeIdle;
 
 	static void init(int mem_size, int addr) {
 		addrStaticRefs = addr;
+		// the GC info word follows the clinit table
+		int table = Native.rdMem(1)+6;
+		stackMaps = Native.rdMem(table+Native.rdMem(table)+1)!=0;
 		mem_start = Native.rdMem(0);
 		// align mem_start to 8 word boundary for the
 		// conservative handle check
@@ -226,8 +442,26 @@ public class GC {
 			if (handle_cnt > MAX_HANDLES) handle_cnt = MAX_HANDLES;
 			int handleArea = handle_cnt << 3;  // handle_cnt * HANDLE_SIZE
 
-			heapStart = mem_start + handleArea;
-			heapSize = mem_size - heapStart;
+			// per-core state blocks, control block and mark stacks
+			cpuCnt = Native.rdMem(Const.IO_CPUCNT);
+			coreBase = mem_start + handleArea;
+			gcCtrl = coreBase + (cpuCnt<<CORE_SHIFT);
+			markBase = gcCtrl + CORE_WORDS;
+			for (int i=coreBase; i<markBase; ++i) {
+				Native.wrMem(0, i);
+			}
+
+			satbBase = markBase + (cpuCnt<<MARK_SHIFT);
+			heapStart = satbBase + (cpuCnt<<SATB_SHIFT);
+			// the dynamic handle segment is still empty
+			memEnd = mem_size&0xfffffff8;
+			handleTop = memEnd;
+			losBase = handleTop;
+			heapSize = losBase - heapStart;
+			histShift = 0;
+			while (((heapSize-1) >> histShift) >= HIST_CNT) {
+				++histShift;
+			}
 
 			// Single contiguous heap: [heapStart, heapStart+heapSize)
 			// Compacted data grows upward from heapStart (copyPtr)
@@ -240,6 +474,8 @@ public class GC {
 
 			freeList = 0;
 			useList = 0;
+			largeList = 0;
+			losFree = 0;
 			grayList = GREY_END;
 			// Use incrementing pointer instead of i*HANDLE_SIZE (multiplication broken)
 			int ref = mem_start;
@@ -251,20 +487,36 @@ public class GC {
 				freeList = ref;
 				Native.wrMem(0, ref+OFF_GREY);
 				Native.wrMem(0, ref+OFF_SPACE);
+				Native.wrMem(0, ref+OFF_REM);
 				ref += HANDLE_SIZE;  // increment by 8 using addition
 			}
+			remSet = REM_END;
 			concurrentGc = false;
 		}
 		// allocate the monitor
 		mutex = new Object();
 
 		OOMError = new OutOfMemoryError();
+
+		useTlab = !Config.USE_SCOPES;
+		parallelGc = useTlab && cpuCnt > 1;
 	}
 
 	public static Object getMutex() {
 		return mutex;
 	}
 
+	/**
+	 * Does ref point to a handle start in one of the two handle
+	 * segments? Conservative stack scanning feeds any word here.
+	 */
+	static boolean isHandle(int ref) {
+		if ((ref&0x7)!=0) {
+			return false;
+		}
+		return (ref>=mem_start && ref<coreBase) || (ref>=handleTop && ref<memEnd);
+	}
+
 	/**
 	 * Add object to the gray list/stack
 	 * @param ref
@@ -279,13 +531,7 @@ public class GC {
 		// handle area are considered for GC.
 		// Null pointer and references to static strings are not
 		// investigated.
-		if (ref<mem_start || ref>=mem_start+handle_cnt*HANDLE_SIZE) {
-			return;
-		}
-		// does the reference point to a handle start?
-		// TODO: happens in concurrent
-		if ((ref&0x7)!=0) {
-//				log("a not aligned handle");
+		if (!isHandle(ref)) {
 			return;
 		}
 
@@ -314,6 +560,179 @@ public class GC {
 		}
 	}
 
+	/**
+	 * Write barrier: the reference ref is overwritten while the
+	 * GC marks. Called from the reference stores in JVM.
+	 */
+	static void satbLog(int ref) {
+		// without a cycle the barrier is on for the nursery only
+		if (gcPhase == PHASE_COMPACT || (gcPhase == PHASE_IDLE && !concurrentGc)) {
+			return;
+		}
+		int me = Native.rdMem(Const.IO_CPU_ID);
+		int core = coreBase + (me << CORE_SHIFT);
+		if (useTlab && Native.rdMem(core+CORE_ROOTS) != 0) {
+			pushOwnRoots(core);
+		}
+		if (ref == 0 || Native.rdMem(ref+OFF_SPACE) == toSpace) {
+			return;
+		}
+		// a preempting scheduler could interleave two threads
+		// in the buffer of a core
+		if (!useTlab || concurrentGc || RtThreadImpl.mission) {
+			synchronized (mutex) {
+				shade(ref);
+			}
+			return;
+		}
+		int buf = satbBase + (me << SATB_SHIFT);
+		int n = Native.rdMem(core+CORE_SATB);
+		Native.wrMem(ref, buf+n);
+		++n;
+		Native.wrMem(n, core+CORE_SATB);
+		if (n == SATB_SIZE) {
+			synchronized (mutex) {
+				satbFlush(core, buf);
+			}
+		}
+	}
+
+	/**
+	 * The stacks of the other cores are on-chip and are not
+	 * scanned in the root scan of an incremental cycle. Each core
+	 * pushes its own stack roots at its first reference store or
+	 * allocation after the snapshot. It has stored no reference
+	 * before, so references it loads from the heap in between are
+	 * covered by the barrier.
+	 */
+	static void pushOwnRoots(int core) {
+		getStackRoots();
+		// cleared after the scan, see rootsPushed()
+		Native.wrMem(0, core+CORE_ROOTS);
+	}
+
+	/**
+	 * @return true when all cores have pushed their stack roots
+	 */
+	static boolean rootsPushed() {
+		if (useTlab) {
+			int core = coreBase;
+			for (int i=0; i<cpuCnt; ++i) {
+				if (Native.rdMem(core+CORE_ROOTS) != 0) {
+					return false;
+				}
+				core += CORE_WORDS;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Grey the logged references of one core. Called with the
+	 * mutex held. A buffer that is flushed after the end of
+	 * marking is dropped.
+	 */
+	static void satbFlush(int core, int buf) {
+		if (gcPhase == PHASE_MARK) {
+			int n = Native.rdMem(core+CORE_SATB);
+			for (int i=0; i<n; ++i) {
+				shade(Native.rdMem(buf+i));
+			}
+		}
+		Native.wrMem(0, core+CORE_SATB);
+	}
+
+	/**
+	 * Flush the buffers of all cores, the other cores are halted.
+	 * @return true when there are gray objects to mark
+	 */
+	static boolean satbFlushAll() {
+		if (useTlab) {
+			int core = coreBase;
+			int buf = satbBase;
+			for (int i=0; i<cpuCnt; ++i) {
+				satbFlush(core, buf);
+				core += CORE_WORDS;
+				buf += SATB_SIZE;
+			}
+		}
+		return grayList != GREY_END;
+	}
+
+	/**
+	 * Put a white object on the gray list. Called with the mutex held.
+	 */
+	static void shade(int ref) {
+		if (!isHandle(ref)) {
+			return;
+		}
+		if (Native.rdMem(ref+OFF_PTR) != 0
+			&& Native.rdMem(ref+OFF_SPACE) != toSpace
+			&& Native.rdMem(ref+OFF_GREY) == 0) {
+			Native.wrMem(grayList, ref+OFF_GREY);
+			grayList = ref;
+		}
+	}
+
+	/**
+	 * Nursery barrier: remember the old object ref when a young
+	 * reference value is stored into it.
+	 */
+	static void remember(int ref, int value) {
+		if (nurserySize == 0 || !isHandle(value) || !isHandle(ref)) {
+			return;
+		}
+		if (Native.rdMem(ref+OFF_REM) != 0 || !isOld(ref) || isOld(value)) {
+			return;
+		}
+		addRemembered(ref);
+	}
+
+	/**
+	 * Old objects are below copyPtr or in the large-object space.
+	 */
+	static boolean isOld(int ref) {
+		int ptr = Native.rdMem(ref+OFF_PTR);
+		return ptr < copyPtr || ptr >= losBase;
+	}
+
+	/**
+	 * Barrier of System.arraycopy(): an old reference array may
+	 * get young references.
+	 * @param handle the destination array
+	 */
+	public static void arrayCopied(int handle) {
+		if (nurserySize == 0 || !isHandle(handle)) {
+			return;
+		}
+		if ((Native.rdMem(handle+OFF_TYPE) & TYPE_MASK) == IS_REFARR
+			&& Native.rdMem(handle+OFF_REM) == 0 && isOld(handle)) {
+			addRemembered(handle);
+		}
+	}
+
+	static void addRemembered(int ref) {
+		synchronized (mutex) {
+			if (Native.rdMem(ref+OFF_REM) == 0) {
+				Native.wrMem(remSet, ref+OFF_REM);
+				remSet = ref;
+			}
+		}
+	}
+
+	/**
+	 * Empty the remembered set. Called with the mutex held.
+	 */
+	static void clearRemSet() {
+		int ref = remSet;
+		while (ref != REM_END) {
+			int next = Native.rdMem(ref+OFF_REM);
+			Native.wrMem(0, ref+OFF_REM);
+			ref = next;
+		}
+		remSet = REM_END;
+	}
+
 	/**
 	 * Scan all thread stacks atomic.
 	 *
@@ -321,10 +740,7 @@ public class GC {
 	static void getStackRoots() {
 		int i, j, cnt;
 		synchronized (mutex) {
-			i = Native.getSP();
-			for (j = Const.STACK_OFF; j <= i; ++j) {
-				push(Native.rdIntMem(j));
-			}
+			scanStack(0, 0, 0);
 			// Stacks from the other threads
 			cnt = RtThreadImpl.getCnt();
 			for (i = 0; i < cnt; ++i) {
@@ -341,6 +757,123 @@ public class GC {
 		}
 	}
 
+	/**
+	 * Push the references on the own stack, to the gray list when
+	 * stack is 0, else to the mark stack of a core.
+	 *
+	 * Without stack maps every word is a candidate. With stack maps
+	 * the frames are walked from the caller of this method down to
+	 * the boot method. A frame is scanned precisely when its method
+	 * has a map for the return PC and the same operand region below
+	 * the callee's arguments. Other frames (interrupt and exception
+	 * handler calls) and the rest of a broken frame chain are
+	 * scanned conservatively.
+	 * @return the new mark stack pointer
+	 */
+	static int scanStack(int core, int stack, int sp) {
+		int i, mp, vp, cfp, map;
+
+		if (!stackMaps) {
+			int top = Native.getSP();
+			for (i = Const.STACK_OFF; i <= top; ++i) {
+				sp = root(core, stack, sp, Native.rdIntMem(i));
+			}
+			return sp;
+		}
+		// skip our own frame, it holds no references
+		int fp = frame();
+		int callee = Native.rdIntMem(fp+2);
+		i = Native.rdMem(Native.rdIntMem(fp+4)+1);
+		fp = callee + (i&0x1f) + ((i>>>5)&0x1f);
+		while (callee > Const.STACK_OFF+1) {
+			mp = Native.rdIntMem(fp+4);
+			vp = Native.rdIntMem(fp+2);
+			if (mp<=0 || mp>=mem_start || vp<=Const.STACK_OFF) {
+				break;
+			}
+			i = Native.rdMem(mp+1);			// cp, locals, args
+			cfp = vp + (i&0x1f) + ((i>>>5)&0x1f);
+			if (cfp+5 > callee) {
+				break;
+			}
+			map = frameMap(mp, Native.rdIntMem(fp+1), callee-cfp-5);
+			if (map==-1) {
+				for (i = vp; i < cfp; ++i) {
+					sp = root(core, stack, sp, Native.rdIntMem(i));
+				}
+				for (i = cfp+5; i < callee; ++i) {
+					sp = root(core, stack, sp, Native.rdIntMem(i));
+				}
+			} else {
+				for (i = vp; map != 0; ++i) {
+					if (i==cfp) {
+						i += 5;
+					}
+					if ((map&1)!=0) {
+						sp = root(core, stack, sp, Native.rdIntMem(i));
+					}
+					map >>>= 1;
+				}
+			}
+			callee = vp;
+			fp = cfp;
+		}
+		for (i = Const.STACK_OFF; i < callee; ++i) {
+			sp = root(core, stack, sp, Native.rdIntMem(i));
+		}
+		return sp;
+	}
+
+	/**
+	 * The frame of a method without arguments and locals starts at vp.
+	 * @return the frame pointer of this call, the caller's state is
+	 * at +1 (pc), +2 (vp) and +4 (mp)
+	 */
+	static int frame() {
+		return Native.getVP();
+	}
+
+	/**
+	 * Binary search of the call site maps below the method code.
+	 * @return the reference map or -1 when there is no map for
+	 * the return PC and operand region
+	 */
+	static int frameMap(int mp, int pc, int region) {
+		int code = Native.rdMem(mp)>>>10;
+		int cnt = Native.rdMem(code-1);
+		int first = code-1-(cnt<<1);
+		int lo = 0;
+		int hi = cnt-1;
+		while (lo <= hi) {
+			int mid = (lo+hi)>>>1;
+			int key = Native.rdMem(first+(mid<<1));
+			int kpc = key>>>8;
+			if (kpc==pc) {
+				if ((key&0xff)!=region) {
+					return -1;
+				}
+				return Native.rdMem(first+(mid<<1)+1);
+			}
+			if (kpc < pc) {
+				lo = mid+1;
+			} else {
+				hi = mid-1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Push a root candidate, see scanStack().
+	 */
+	static int root(int core, int stack, int sp, int ref) {
+		if (stack==0) {
+			push(ref);
+			return sp;
+		}
+		return markPush(core, stack, sp, ref);
+	}
+
 	/**
 	 * Scan all static fields
 	 *
@@ -395,7 +928,7 @@ public class GC {
 
 			// get pointer to object
 			int addr = Native.rdMem(ref);
-			int flags = Native.rdMem(ref+OFF_TYPE);
+			int flags = Native.rdMem(ref+OFF_TYPE) & TYPE_MASK;
 			if (flags==IS_REFARR) {
 				// is an array of references
 				int size = Native.rdMem(ref+OFF_MTAB_ALEN);
@@ -407,13 +940,13 @@ public class GC {
 				// it's a plain object
 				// get pointer to method table
 				flags = Native.rdMem(ref+OFF_MTAB_ALEN);
-				// get real flags
+				// get the reference field list
 				flags = Native.rdMem(flags+Const.MTAB2GC_INFO);
-				for (i=0; flags!=0; ++i) {
-					if ((flags&1)!=0) {
-						push(Native.rdMem(addr+i));
+				if (flags!=0) {
+					int cnt = Native.rdMem(flags);
+					for (i=1; i<=cnt; ++i) {
+						push(Native.rdMem(addr+Native.rdMem(flags+i)));
 					}
-					flags >>>= 1;
 				}
 			}
 		}
@@ -425,8 +958,6 @@ public class GC {
 	 * @param ref handle address of gray object (already popped from gray list)
 	 */
 	static void markChildren(int ref) {
-		int i;
-
 		// already marked
 		if (Native.rdMem(ref+OFF_SPACE)==toSpace) {
 			return;
@@ -440,9 +971,16 @@ public class GC {
 		// Mark it BLACK
 		Native.wrMem(toSpace, ref+OFF_SPACE);
 
-		// push all children
+		pushChildren(ref);
+	}
+
+	/**
+	 * Push all children of an object.
+	 */
+	static void pushChildren(int ref) {
+		int i;
 		int addr = Native.rdMem(ref);
-		int flags = Native.rdMem(ref+OFF_TYPE);
+		int flags = Native.rdMem(ref+OFF_TYPE) & TYPE_MASK;
 		if (flags==IS_REFARR) {
 			// is an array of references
 			int size = Native.rdMem(ref+OFF_MTAB_ALEN);
@@ -453,11 +991,11 @@ public class GC {
 			// it's a plain object
 			flags = Native.rdMem(ref+OFF_MTAB_ALEN);
 			flags = Native.rdMem(flags+Const.MTAB2GC_INFO);
-			for (i=0; flags!=0; ++i) {
-				if ((flags&1)!=0) {
-					push(Native.rdMem(addr+i));
+			if (flags!=0) {
+				int cnt = Native.rdMem(flags);
+				for (i=1; i<=cnt; ++i) {
+					push(Native.rdMem(addr+Native.rdMem(flags+i)));
 				}
-				flags >>>= 1;
 			}
 		}
 	}
@@ -482,6 +1020,7 @@ public class GC {
 
 			markChildren(ref);
 			count++;
+			cycleWork++;
 		}
 
 		return false;  // more work to do
@@ -493,7 +1032,7 @@ public class GC {
 	 * @return size in words
 	 */
 	static int getObjectSize(int ref) {
-		int type = Native.rdMem(ref+OFF_TYPE);
+		int type = Native.rdMem(ref+OFF_TYPE) & TYPE_MASK;
 		if (type==IS_OBJ) {
 			// plain object: size is at offset 0 of class struct
 			// OFF_MTAB_ALEN points to method table
@@ -509,43 +1048,222 @@ public class GC {
 		}
 	}
 
+	/**
+	 * Slide an object down to its compacted position with the copy
+	 * unit of the memory controller. Each memCopy moves one word
+	 * without a round trip through the stack, and while the copy
+	 * is in progress reads of the already moved part of the source
+	 * are redirected to the destination. The translation is stopped
+	 * with a negative position at the end.
+	 * @param dest new data address, dest <= src
+	 * @param src old data address
+	 * @param size size in words
+	 */
+	static void moveObject(int dest, int src, int size) {
+		for (int i=0; i<size; ++i) {
+			Native.memCopy(dest, src, i);
+		}
+		Native.memCopy(dest, src, -1);
+	}
+
+	/**
+	 * Take a block of the large-object space, first fit. The upper
+	 * part of a bigger block is taken, the rest stays in the list.
+	 * Called with the mutex held.
+	 * @param size size in words
+	 * @return the address or 0 when no block fits
+	 */
+	static int losAlloc(int size) {
+		size = (size+1) & ~1;
+		int prev = 0;
+		for (int blk=losFree; blk!=0; blk=Native.rdMem(blk+1)) {
+			int n = Native.rdMem(blk);
+			if (n > size) {
+				Native.wrMem(n-size, blk);
+				return blk+n-size;
+			}
+			if (n == size) {
+				if (prev == 0) {
+					losFree = Native.rdMem(blk+1);
+				} else {
+					Native.wrMem(Native.rdMem(blk+1), prev+1);
+				}
+				return blk;
+			}
+			prev = blk;
+		}
+		return 0;
+	}
+
+	/**
+	 * Give a block back to the large-object space, it is merged
+	 * with free neighbours. Called with the mutex held.
+	 * @param ptr the address
+	 * @param size size in words
+	 */
+	static void losRelease(int ptr, int size) {
+		size = (size+1) & ~1;
+		int prev = 0;
+		int next = losFree;
+		while (next != 0 && next < ptr) {
+			prev = next;
+			next = Native.rdMem(next+1);
+		}
+		if (next == ptr+size) {
+			size += Native.rdMem(next);
+			next = Native.rdMem(next+1);
+		}
+		if (prev != 0 && prev+Native.rdMem(prev) == ptr) {
+			Native.wrMem(Native.rdMem(prev)+size, prev);
+			Native.wrMem(next, prev+1);
+		} else {
+			Native.wrMem(size, ptr);
+			Native.wrMem(next, ptr+1);
+			if (prev == 0) {
+				losFree = ptr;
+			} else {
+				Native.wrMem(ptr, prev+1);
+			}
+		}
+	}
+
+	/**
+	 * Free the unmarked large objects. Called with the mutex held.
+	 */
+	static void sweepLarge() {
+		int list = 0;
+		int ref = largeList;
+		while (ref != 0) {
+			int next = Native.rdMem(ref+OFF_NEXT);
+			if (Native.rdMem(ref+OFF_SPACE)==toSpace) {
+				Native.wrMem(list, ref+OFF_NEXT);
+				list = ref;
+			} else {
+				losRelease(Native.rdMem(ref+OFF_PTR), getObjectSize(ref));
+				Native.wrMem(freeList, ref+OFF_NEXT);
+				freeList = ref;
+				Native.wrMem(0, ref+OFF_PTR);
+			}
+			ref = next;
+		}
+		largeList = list;
+	}
+
+	/**
+	 * Move a live large array from the heap into the large-object
+	 * space when there is a block for it. The space is above the
+	 * heap, the copy does not overlap. Called with the mutex held.
+	 * @return true when it was moved
+	 */
+	static boolean promoteLarge(int ref) {
+		int size = getObjectSize(ref);
+		if (size < LARGE_OBJ) {
+			return false;
+		}
+		int ptr = losAlloc(size);
+		if (ptr == 0) {
+			return false;
+		}
+		moveObject(ptr, Native.rdMem(ref+OFF_PTR), size);
+		Native.wrMem(ptr, ref+OFF_PTR);
+		Native.wrMem(Native.rdMem(ref+OFF_TYPE) | IS_LARGE, ref+OFF_TYPE);
+		Native.wrMem(largeList, ref+OFF_NEXT);
+		largeList = ref;
+		return true;
+	}
+
 	/**
 	 * Sort a handle linked list by ascending OFF_PTR (object data address).
 	 * This is CRITICAL for correct compaction: objects must be processed
 	 * in address order so that sliding compaction never overwrites
 	 * not-yet-copied data.
 	 *
-	 * Uses insertion sort on a singly-linked list. O(n^2) worst case,
-	 * which is acceptable for JOP's typical object counts (dozens to hundreds).
+	 * Uses a natural merge sort on the singly-linked list: each pass
+	 * merges neighbouring ascending runs, O(n log r) for r runs, no
+	 * recursion and no extra memory. The use list is nearly sorted:
+	 * compaction rebuilds it in ascending order and new objects are
+	 * pushed at decreasing addresses, so there are only a few runs
+	 * and the sort is linear in practice.
 	 *
 	 * @param list head of the linked list to sort
 	 * @return head of the sorted list
 	 */
 	static int sortListByAddress(int list) {
-		int sorted = 0;
-		int curr = list;
+		int p, q, pEnd, qEnd, rest, e, tail;
+		int merges;
 
-		while (curr != 0) {
-			int next = Native.rdMem(curr + OFF_NEXT);
-			int currAddr = Native.rdMem(curr + OFF_PTR);
+		if (list == 0) {
+			return 0;
+		}
 
-			if (sorted == 0 || currAddr <= Native.rdMem(sorted + OFF_PTR)) {
-				Native.wrMem(sorted, curr + OFF_NEXT);
-				sorted = curr;
-			} else {
-				int prev = sorted;
-				int scan = Native.rdMem(sorted + OFF_NEXT);
-				while (scan != 0 && Native.rdMem(scan + OFF_PTR) < currAddr) {
-					prev = scan;
-					scan = Native.rdMem(scan + OFF_NEXT);
+		for (;;) {
+			p = list;
+			list = 0;
+			tail = 0;
+			merges = 0;
+
+			while (p != 0) {
+				// p..pEnd: ascending run
+				pEnd = findRunEnd(p);
+				q = Native.rdMem(pEnd + OFF_NEXT);
+				if (q == 0) {
+					// single run left in this pass
+					if (tail != 0) {
+						Native.wrMem(p, tail + OFF_NEXT);
+					} else {
+						list = p;
+					}
+					break;
+				}
+				// q..qEnd: next ascending run
+				qEnd = findRunEnd(q);
+				rest = Native.rdMem(qEnd + OFF_NEXT);
+				Native.wrMem(0, pEnd + OFF_NEXT);
+				Native.wrMem(0, qEnd + OFF_NEXT);
+				++merges;
+
+				while (p != 0 || q != 0) {
+					if (q == 0 || (p != 0 &&
+							Native.rdMem(p + OFF_PTR) <= Native.rdMem(q + OFF_PTR))) {
+						e = p;
+						p = Native.rdMem(p + OFF_NEXT);
+					} else {
+						e = q;
+						q = Native.rdMem(q + OFF_NEXT);
+					}
+					if (tail != 0) {
+						Native.wrMem(e, tail + OFF_NEXT);
+					} else {
+						list = e;
+					}
+					tail = e;
 				}
-				Native.wrMem(scan, curr + OFF_NEXT);
-				Native.wrMem(curr, prev + OFF_NEXT);
+				Native.wrMem(0, tail + OFF_NEXT);
+				p = rest;
+			}
+
+			if (merges == 0) {
+				return list;
 			}
-			curr = next;
 		}
+	}
 
-		return sorted;
+	/**
+	 * @return last handle of the ascending run starting at ref
+	 */
+	static int findRunEnd(int ref) {
+		int addr = Native.rdMem(ref + OFF_PTR);
+		int next = Native.rdMem(ref + OFF_NEXT);
+		while (next != 0) {
+			int nextAddr = Native.rdMem(next + OFF_PTR);
+			if (nextAddr < addr) {
+				break;
+			}
+			ref = next;
+			addr = nextAddr;
+			next = Native.rdMem(ref + OFF_NEXT);
+		}
+		return ref;
 	}
 
 	/**
@@ -572,6 +1290,7 @@ public class GC {
 	static void compactAndSweep() {
 
 		int ref;
+		int useTail = 0;
 		int compactPtr = heapStart;
 
 		synchronized (mutex) {
@@ -582,6 +1301,7 @@ public class GC {
 
 			ref = useList;		// get start of the list
 			useList = 0;		// new uselist starts empty
+			sweepLarge();
 		}
 
 		while (ref!=0) {
@@ -589,8 +1309,18 @@ public class GC {
 			// read next element, as it is destroyed by list operations
 			int next = Native.rdMem(ref+OFF_NEXT);
 
+			// a large one leaves the heap
+			boolean large = false;
+			if (losFree != 0 && Native.rdMem(ref+OFF_SPACE)==toSpace) {
+				synchronized (mutex) {
+					large = promoteLarge(ref);
+				}
+			}
+
+			if (large) {
+				// it is on largeList now
 			// a BLACK one (marked)
-			if (Native.rdMem(ref+OFF_SPACE)==toSpace) {
+			} else if (Native.rdMem(ref+OFF_SPACE)==toSpace) {
 				int size = getObjectSize(ref);
 				int oldAddr = Native.rdMem(ref+OFF_PTR);
 
@@ -601,19 +1331,22 @@ public class GC {
 					// by ascending address (proven by induction:
 					// compactPtr advances by sum of sizes of objects
 					// below this one, which <= their address span).
-					for (int i=0; i<size; ++i) {
-						Native.wrMem(Native.rdMem(oldAddr+i), compactPtr+i);
-					}
+					moveObject(compactPtr, oldAddr, size);
 					// Update handle's data pointer
 					Native.wrMem(compactPtr, ref+OFF_PTR);
 				}
 
 				compactPtr += size;
 
-				// add to used list
+				// append to used list, keeps it in address order
 				synchronized (mutex) {
-					Native.wrMem(useList, ref+OFF_NEXT);
-					useList = ref;
+					Native.wrMem(0, ref+OFF_NEXT);
+					if (useTail == 0) {
+						useList = ref;
+					} else {
+						Native.wrMem(ref, useTail+OFF_NEXT);
+					}
+					useTail = ref;
 				}
 			// a WHITE one (unmarked = garbage)
 			} else {
@@ -640,16 +1373,32 @@ public class GC {
 	// ================================================================
 
 	/**
-	 * Prepare for incremental compaction.
+	 * Prepare for incremental compaction. The other cores are halted.
 	 */
 	static void prepareCompact() {
 		synchronized (mutex) {
+			// compaction slides objects into the free rest of the TLABs
+			tlabRetireAll();
 			compactList = sortListByAddress(useList);
 			useList = 0;
+			sweepLarge();
 			compactDst = heapStart;
 			newUseList = 0;
-		}
-	}
+			newUseTail = 0;
+			compactTop = allocPtr;
+			// objects from the top of the heap slide down as well,
+			// allocation shall not go below the compacted data
+			int end = heapStart;
+			for (int ref=compactList; ref!=0; ref=Native.rdMem(ref+OFF_NEXT)) {
+				if (Native.rdMem(ref+OFF_SPACE) == toSpace) {
+					end += getObjectSize(ref);
+				}
+			}
+			if (end > copyPtr) {
+				copyPtr = end;
+			}
+		}
+	}
 
 	/**
 	 * Incremental compact: process up to COMPACT_STEP handles.
@@ -668,22 +1417,35 @@ public class GC {
 				compactList = Native.rdMem(ref + OFF_NEXT);
 			}
 
-			if (Native.rdMem(ref + OFF_SPACE) == toSpace) {
+			boolean large = false;
+			if (losFree != 0 && Native.rdMem(ref + OFF_SPACE) == toSpace) {
+				synchronized (mutex) {
+					large = promoteLarge(ref);
+				}
+			}
+
+			if (large) {
+				// it is on largeList now
+			} else if (Native.rdMem(ref + OFF_SPACE) == toSpace) {
 				int size = getObjectSize(ref);
 				int oldAddr = Native.rdMem(ref + OFF_PTR);
 
 				if (oldAddr != compactDst && size > 0) {
-					for (int i = 0; i < size; ++i) {
-						Native.wrMem(Native.rdMem(oldAddr + i), compactDst + i);
-					}
+					moveObject(compactDst, oldAddr, size);
 					Native.wrMem(compactDst, ref + OFF_PTR);
 				}
 
 				compactDst += size;
 
+				// append, the new use list stays in address order
 				synchronized (mutex) {
-					Native.wrMem(newUseList, ref + OFF_NEXT);
-					newUseList = ref;
+					Native.wrMem(0, ref + OFF_NEXT);
+					if (newUseTail == 0) {
+						newUseList = ref;
+					} else {
+						Native.wrMem(ref, newUseTail + OFF_NEXT);
+					}
+					newUseTail = ref;
 				}
 			} else {
 				synchronized (mutex) {
@@ -694,38 +1456,47 @@ public class GC {
 			}
 
 			count++;
+			cycleWork++;
 		}
 
 		return false;
 	}
 
 	/**
-	 * Finish an incremental GC cycle.
+	 * Finish an incremental GC cycle. The objects allocated during
+	 * compaction are moved down to the compacted ones, the top of
+	 * the heap is free again. The other cores are halted.
 	 */
 	static void finishCycle() {
 		synchronized (mutex) {
-			if (newUseList == 0) {
-				// Nothing compacted
-			} else if (useList == 0) {
-				useList = newUseList;
-			} else {
-				int tail = newUseList;
-				int tailNext = Native.rdMem(tail + OFF_NEXT);
-				while (tailNext != 0) {
-					tail = tailNext;
-					tailNext = Native.rdMem(tail + OFF_NEXT);
+			copyPtr = compactDst;
+			if (allocPtr != compactTop) {
+				tlabRetireAll();
+				useList = sortListByAddress(useList);
+				for (int ref=useList; ref!=0; ref=Native.rdMem(ref+OFF_NEXT)) {
+					int size = getObjectSize(ref);
+					int oldAddr = Native.rdMem(ref+OFF_PTR);
+					if (oldAddr != copyPtr && size > 0) {
+						moveObject(copyPtr, oldAddr, size);
+						Native.wrMem(copyPtr, ref+OFF_PTR);
+					}
+					copyPtr += size;
 				}
-				Native.wrMem(useList, tail + OFF_NEXT);
+			}
+			allocPtr = heapStart + heapSize;
+			// compacted objects first, then the moved ones
+			if (newUseList != 0) {
+				Native.wrMem(useList, newUseTail + OFF_NEXT);
 				useList = newUseList;
 			}
 			newUseList = 0;
-			copyPtr = compactDst;
-		}
-
-		for (int i = copyPtr; i < allocPtr; ++i) {
-			Native.wrMem(0, i);
+			newUseTail = 0;
+			resizeHandles();
+			resizeLarge();
 		}
 
+		// No zeroing of [copyPtr, allocPtr) here, objects are
+		// zeroed when they are allocated.
 		Native.invalidate();
 	}
 
@@ -733,7 +1504,7 @@ public class GC {
 	 * Start a new incremental GC cycle (STW root scan).
 	 */
 	static void startCycle() {
-		Native.wr(1, Const.IO_GC_HALT);
+		haltOthers();
 
 		grayList = GREY_END;
 
@@ -745,21 +1516,35 @@ public class GC {
 
 		getStackRoots();
 		getStaticRoots();
+		if (useTlab) {
+			int me = Native.rdMem(Const.IO_CPU_ID);
+			int core = coreBase;
+			for (int i=0; i<cpuCnt; ++i) {
+				Native.wrMem(i != me ? 1 : 0, core+CORE_ROOTS);
+				core += CORE_WORDS;
+			}
+		}
 
-		Native.wr(0, Const.IO_GC_HALT);
-
+		// drop entries left over from the last cycle
+		satbFlushAll();
+		setPace();
 		gcPhase = PHASE_MARK;
+		barrier = true;
+
+		Native.wr(0, Const.IO_GC_HALT);
 	}
 
 	/**
 	 * Drain all remaining incremental GC work (STW fallback).
 	 */
 	static void finishCycleNow() {
-		Native.wr(1, Const.IO_GC_HALT);
+		haltOthers();
 
 		if (gcPhase == PHASE_MARK) {
-			while (!markStep()) {
-			}
+			do {
+				while (!markStep()) {
+				}
+			} while (satbFlushAll());
 			prepareCompact();
 			gcPhase = PHASE_COMPACT;
 		}
@@ -771,12 +1556,59 @@ public class GC {
 		}
 
 		gcPhase = PHASE_IDLE;
+		barrier = concurrentGc;
+		lastWork = cycleWork;
 
 		Native.wr(0, Const.IO_GC_HALT);
 	}
 
 	/**
-	 * Advance incremental GC state machine by one increment.
+	 * Set the pace of a new cycle from the work estimate and the
+	 * free words. 1/16 of the heap is kept as reserve, the estimate
+	 * gets 1/4 on top, a cycle shall end before we run out.
+	 */
+	static void setPace() {
+		int est = lastWork;
+		if (est == 0) {
+			// first cycle: each handle marked and compacted
+			est = handle_cnt << 1;
+		}
+		est += (est >> 2) + 1;
+		int free = allocPtr - copyPtr - (heapSize >> 4);
+		if (free < 1) {
+			free = 1;
+		}
+		int le = 0;
+		while ((1 << le) < est) {
+			++le;
+		}
+		int lf = 0;
+		while ((free >> lf) > 1) {
+			++lf;
+		}
+		paceShift = le - lf;
+		cycleAlloc = 0;
+		cycleWork = 0;
+	}
+
+	/**
+	 * @return the work the allocators have paid for in this cycle
+	 */
+	static int paceTarget() {
+		int s = paceShift;
+		if (s < 0) {
+			return s > -31 ? cycleAlloc >> -s : 0;
+		}
+		if (s > 30 || cycleAlloc > (0x3fffffff >> s)) {
+			return 0x3fffffff;
+		}
+		return cycleAlloc << s;
+	}
+
+	/**
+	 * Advance the incremental GC state machine. Steps of MARK_STEP
+	 * or COMPACT_STEP are done until the work is paid or the pause
+	 * budget is used up, at least one step per call.
 	 */
 	static void gcIncrement() {
 		if (gcPhase == PHASE_IDLE) {
@@ -784,51 +1616,139 @@ public class GC {
 			return;
 		}
 
-		if (gcPhase == PHASE_MARK) {
-			if (markStep()) {
-				prepareCompact();
-				gcPhase = PHASE_COMPACT;
+		int start = Native.rd(Const.IO_US_CNT);
+		for (;;) {
+			if (gcPhase == PHASE_MARK) {
+				// the other cores have to push their roots first
+				if (markStep()) {
+					if (!rootsPushed()) {
+						return;
+					}
+					haltOthers();
+					// the logged references of the other cores
+					while (satbFlushAll()) {
+						while (!markStep()) {
+						}
+					}
+					prepareCompact();
+					gcPhase = PHASE_COMPACT;
+					Native.wr(0, Const.IO_GC_HALT);
+				}
+			} else if (gcPhase == PHASE_COMPACT) {
+				if (compactStep()) {
+					haltOthers();
+					finishCycle();
+					gcPhase = PHASE_IDLE;
+					barrier = concurrentGc;
+					lastWork = cycleWork;
+					Native.wr(0, Const.IO_GC_HALT);
+					return;
+				}
+			} else {
+				return;
 			}
-			return;
-		}
 
-		if (gcPhase == PHASE_COMPACT) {
-			if (compactStep()) {
-				finishCycle();
-				gcPhase = PHASE_IDLE;
+			if (cycleWork >= paceTarget()) {
+				return;
+			}
+			if (pauseBudget != 0 &&
+				Native.rd(Const.IO_US_CNT)-start >= pauseBudget) {
+				return;
 			}
-			return;
 		}
 	}
 
 	/**
 	 * Proactively trigger incremental GC work during allocation.
+	 * @param words the allocated words the collector is paced with
 	 */
-	static void tryGcIncrement() {
-		if (mutex == null) return;
-
-		int freeSpace = allocPtr - copyPtr;
-		int threshold = heapSize >> 2;  // 25% of heap
+	static void tryGcIncrement(int words) {
+		// the nursery replaces the incremental cycles
+		if (mutex == null || nurserySize != 0) return;
+
+		if (gcPhase == PHASE_MARK && useTlab) {
+			int core = coreBase + (Native.rdMem(Const.IO_CPU_ID) << CORE_SHIFT);
+			if (Native.rdMem(core+CORE_ROOTS) != 0) {
+				pushOwnRoots(core);
+			}
+		}
 
-		if (gcPhase != PHASE_IDLE) {
-			gcIncrement();
-		} else if (freeSpace < threshold) {
-			gcIncrement();
+		// one core at a time advances the state machine
+		synchronized (mutex) {
+			int freeSpace = allocPtr - copyPtr;
+			int threshold = heapSize >> 2;  // 25% of heap
+
+			if (gcPhase != PHASE_IDLE) {
+				cycleAlloc += words;
+				gcIncrement();
+			} else if (freeSpace < threshold) {
+				gcIncrement();
+			}
 		}
 	}
 
 	public static void setConcurrent() {
 		concurrentGc = true;
+		barrier = true;
+		nurserySize = 0;
+	}
+
+	/**
+	 * Enable or disable the parallel stop-the-world collection
+	 * on a CMP. It is on by default with more than one core.
+	 */
+	public static void setParallel(boolean on) {
+		parallelGc = on && useTlab && cpuCnt > 1;
+	}
+
+	/**
+	 * Set the time budget of one incremental GC step during an
+	 * allocation, measured with the microsecond counter.
+	 * @param us the budget in microseconds, 0 for no limit
+	 */
+	public static void setPauseBudget(int us) {
+		pauseBudget = us < 0 ? 0 : us;
+	}
+
+	/**
+	 * Enable the generational nursery, it replaces the incremental
+	 * cycles. Not available with the concurrent GC and on a CMP,
+	 * the minor collection does not see the stacks of other cores.
+	 * @param words size of the nursery in words, 0 turns it off
+	 */
+	public static void setNursery(int words) {
+		synchronized (mutex) {
+			if (gcPhase != PHASE_IDLE) {
+				finishCycleNow();
+			}
+			if (concurrentGc || cpuCnt > 1 || words <= 0) {
+				words = 0;
+			} else if (words > heapSize >> 1) {
+				words = heapSize >> 1;
+			}
+			nurserySize = words;
+			barrier = concurrentGc || words != 0;
+			// start with an old heap and an empty remembered set
+			gc();
+		}
 	}
-	static void gc_alloc() {
+	/**
+	 * Collect when an allocation failed.
+	 * @param words the size of the object that did not fit
+	 */
+	static void gc_alloc(int words) {
 		if (Config.USE_SCOPES) {
 			throw OOMError;
 		}
+		if (freeList == 0) {
+			handlesShort = true;
+		}
 		if (gcPhase != PHASE_IDLE) {
 			// Incremental GC in progress -- drain it to completion
 			finishCycleNow();
 			// If still not enough space, run a full STW cycle
-			if (freeList == 0 || (allocPtr - copyPtr) < (heapSize >> 3)) {
+			if (freeList == 0 || copyPtr+words >= allocPtr
+				|| (allocPtr - copyPtr) < (heapSize >> 3)) {
 				gc();
 			}
 		} else {
@@ -837,48 +1757,925 @@ public class GC {
 	}
 
 	public static void gc() {
-		// Stop-the-world: halt all other cores during GC.
-		// This prevents concurrent SDRAM access that could see
-		// partially-moved objects during the compaction phase.
-		Native.wr(1, Const.IO_GC_HALT);
-
-		// For stop-the-world GC, discard write barrier entries.
-		// All live objects are found via roots (stack + static refs).
-		// The write barrier gray list may contain non-handle values
-		// from hardware object creation during clinit.
-		if (!concurrentGc) {
-			grayList = GREY_END;
+		// A core that holds the mutex is not halted, it shall not
+		// change allocPtr or the lists while we collect.
+		synchronized (mutex) {
+			// an incremental compaction would go on with stale lists
+			if (gcPhase != PHASE_IDLE) {
+				finishCycleNow();
+			}
+			// Parallel: the other cores mark and compact with us
+			if (parallelGc && !concurrentGc && !RtThreadImpl.mission) {
+				if (joinWorkers()) {
+					parallelCollect();
+					Native.wrMem(PAR_IDLE, gcCtrl);
+					// all objects are old now
+					clearRemSet();
+					resizeHandles();
+					resizeLarge();
+					return;
+				}
+			}
+
+			// Stop-the-world: halt all other cores during GC.
+			// This prevents concurrent SDRAM access that could see
+			// partially-moved objects during the compaction phase.
+			haltOthers();
+			tlabRetireAll();
+
+			// For stop-the-world GC, discard write barrier entries.
+			// All live objects are found via roots (stack + static refs).
+			// The write barrier gray list may contain non-handle values
+			// from hardware object creation during clinit.
+			if (!concurrentGc) {
+				grayList = GREY_END;
+			}
+
+			// Toggle mark value: 1 -> 2 -> 1 -> 2 ...
+			// After toggle, all existing objects have the old mark value
+			// in OFF_SPACE, so they appear unmarked (white).
+			if (toSpace == 1) {
+				toSpace = 2;
+			} else {
+				toSpace = 1;
+			}
+
+			mark();
+			compactAndSweep();
+
+			// The free region is not zeroed in the pause: newObject(),
+			// newArray() and tlabAlloc() zero each object on allocation
+			// (JVM spec: all fields default to 0/null).
+
+			// Invalidate caches after compaction -- object data has moved
+			Native.invalidate();
+
+			// cores that joined too late return from gcWorker()
+			Native.wrMem(PAR_IDLE, gcCtrl);
+
+			// Resume other cores
+			Native.wr(0, Const.IO_GC_HALT);
+
+			// all objects are old now
+			clearRemSet();
+			resizeHandles();
+			resizeLarge();
 		}
+	}
 
-		// Toggle mark value: 1 -> 2 -> 1 -> 2 ...
-		// After toggle, all existing objects have the old mark value
-		// in OFF_SPACE, so they appear unmarked (white).
+	/**
+	 * Size the dynamic handle segment at the end of a collection.
+	 * It grows when the handles ran out before the heap and more
+	 * than 3/4 of them are still in use, see takeChunk(). The
+	 * lowest chunks go back when they hold no object and less than
+	 * 1/2 of the handles stay in use.
+	 * Called with the mutex held, allocPtr is at the top.
+	 */
+	static void resizeHandles() {
+		if (!handlesShort && handleTop == memEnd) {
+			return;
+		}
+		int total = handle_cnt + ((memEnd-handleTop) >> 3);
+		int free = 0;
+		for (int ref=freeList; ref!=0; ref=Native.rdMem(ref+OFF_NEXT)) {
+			++free;
+		}
+
+		if (handlesShort) {
+			handlesShort = false;
+			while (free < (total >> 2) && takeChunk()) {
+				handleTop -= CHUNK_WORDS;
+				int ref = handleTop;
+				for (int i=0; i<HANDLE_CHUNK; ++i) {
+					Native.wrMem(0, ref+OFF_PTR);
+					Native.wrMem(0, ref+OFF_SPACE);
+					Native.wrMem(0, ref+OFF_GREY);
+					Native.wrMem(0, ref+OFF_REM);
+					Native.wrMem(freeList, ref+OFF_NEXT);
+					freeList = ref;
+					ref += HANDLE_SIZE;
+				}
+				free += HANDLE_CHUNK;
+				total += HANDLE_CHUNK;
+			}
+			if (handleTop == memEnd) {
+				return;
+			}
+		}
+
+		int top = handleTop;
+		while (top < memEnd && free-HANDLE_CHUNK > (total-HANDLE_CHUNK) >> 1) {
+			int end = top + CHUNK_WORDS;
+			int ref;
+			for (ref=top; ref<end; ref+=HANDLE_SIZE) {
+				if (Native.rdMem(ref+OFF_PTR) != 0) {
+					break;
+				}
+			}
+			if (ref != end) {
+				break;
+			}
+			top = end;
+			free -= HANDLE_CHUNK;
+			total -= HANDLE_CHUNK;
+		}
+		// The static handles go first. The dynamic ones are taken
+		// last, so their chunks become free. Handles of released
+		// chunks are dropped.
+		int list = 0;
+		int tail = 0;
+		int dyn = 0;
+		int ref = freeList;
+		while (ref != 0) {
+			int next = Native.rdMem(ref+OFF_NEXT);
+			if (ref < coreBase) {
+				Native.wrMem(list, ref+OFF_NEXT);
+				if (list == 0) {
+					tail = ref;
+				}
+				list = ref;
+			} else if (ref >= top) {
+				Native.wrMem(dyn, ref+OFF_NEXT);
+				dyn = ref;
+			}
+			ref = next;
+		}
+		if (tail == 0) {
+			list = dyn;
+		} else {
+			Native.wrMem(dyn, tail+OFF_NEXT);
+		}
+		freeList = list;
+		if (top != handleTop) {
+			if (losBase == handleTop) {
+				heapSize += top - handleTop;
+				losBase = top;
+			} else {
+				losRelease(handleTop, top - handleTop);
+			}
+			handleTop = top;
+		}
+		allocPtr = losBase;
+	}
+
+	/**
+	 * Take the words below the handle segment for a new chunk: from
+	 * the heap when the large-object space is empty, as long as 1/8
+	 * of the heap stays for the objects, else from a free block at
+	 * the top of the large-object space.
+	 * @return false when there is no room
+	 */
+	static boolean takeChunk() {
+		if (losFree == losBase && losBase+Native.rdMem(losFree) == handleTop) {
+			// an unused large-object space goes back to the heap
+			heapSize += handleTop - losBase;
+			losBase = handleTop;
+			losFree = 0;
+			allocPtr = losBase;
+		}
+		if (losBase == handleTop) {
+			if (allocPtr-copyPtr-CHUNK_WORDS <= (heapSize >> 3)) {
+				return false;
+			}
+			heapSize -= CHUNK_WORDS;
+			losBase -= CHUNK_WORDS;
+			allocPtr = losBase;
+			return true;
+		}
+		int prev = 0;
+		int blk = losFree;
+		if (blk == 0) {
+			return false;
+		}
+		while (Native.rdMem(blk+1) != 0) {
+			prev = blk;
+			blk = Native.rdMem(blk+1);
+		}
+		int n = Native.rdMem(blk);
+		if (blk+n != handleTop || n < CHUNK_WORDS) {
+			return false;
+		}
+		if (n > CHUNK_WORDS) {
+			Native.wrMem(n-CHUNK_WORDS, blk);
+		} else if (prev == 0) {
+			losFree = 0;
+		} else {
+			Native.wrMem(0, prev+1);
+		}
+		return true;
+	}
+
+	/**
+	 * Size the large-object space at the end of a collection. It
+	 * grows by the large arrays that went to the heap, as long as
+	 * 1/4 of the heap stays free. After LARGE_IDLE collections
+	 * without such a miss a free block at its bottom goes back to
+	 * the heap. Called with the mutex held, allocPtr is at the top.
+	 */
+	static void resizeLarge() {
+		int grow = (largeShort+1) & ~1;
+		largeShort = 0;
+		if (grow != 0) {
+			largeIdle = 0;
+			int room = (allocPtr - copyPtr - (heapSize >> 2)) & ~1;
+			if (grow > room) {
+				grow = room;
+			}
+			if (grow < LARGE_OBJ) {
+				return;
+			}
+			heapSize -= grow;
+			losBase -= grow;
+			losRelease(losBase, grow);
+		} else if (losFree == losBase && losBase != handleTop
+			&& ++largeIdle >= LARGE_IDLE) {
+			largeIdle = 0;
+			int n = Native.rdMem(losFree);
+			losFree = Native.rdMem(losFree+1);
+			heapSize += n;
+			losBase += n;
+		}
+		allocPtr = losBase;
+	}
+
+	/**
+	 * Minor collection of the nursery, stop-the-world with the roots
+	 * of gc(). Old objects are black and are not traced, the
+	 * remembered ones are scanned for young references. The
+	 * survivors slide down to copyPtr, they are old then.
+	 * Called with the mutex held.
+	 */
+	static void minorGc() {
+		haltOthers();
+		tlabRetireAll();
+
+		// the young objects become white, the old ones are black
+		int white = toSpace == 1 ? 2 : 1;
+		int young = useList;
+		int tail = 0;
+		int ref = young;
+		while (ref != 0 && Native.rdMem(ref+OFF_PTR) >= copyPtr) {
+			Native.wrMem(white, ref+OFF_SPACE);
+			tail = ref;
+			ref = Native.rdMem(ref+OFF_NEXT);
+		}
+		useList = ref;
+		if (tail == 0) {
+			young = 0;
+		} else {
+			Native.wrMem(0, tail+OFF_NEXT);
+		}
+
+		grayList = GREY_END;
+		getStackRoots();
+		getStaticRoots();
+		for (ref=remSet; ref!=REM_END; ref=Native.rdMem(ref+OFF_REM)) {
+			pushChildren(ref);
+		}
+		clearRemSet();
+		while (!markStep()) {
+		}
+
+		// free the dead ones, allocation goes down and the handles
+		// are prepended, the survivors are usually in address order
+		int live = 0;
+		boolean sorted = true;
+		tail = 0;
+		ref = young;
+		while (ref != 0) {
+			int next = Native.rdMem(ref+OFF_NEXT);
+			if (Native.rdMem(ref+OFF_SPACE) == toSpace) {
+				Native.wrMem(0, ref+OFF_NEXT);
+				if (tail == 0) {
+					live = ref;
+				} else {
+					if (Native.rdMem(ref+OFF_PTR) < Native.rdMem(tail+OFF_PTR)) {
+						sorted = false;
+					}
+					Native.wrMem(ref, tail+OFF_NEXT);
+				}
+				tail = ref;
+			} else {
+				Native.wrMem(freeList, ref+OFF_NEXT);
+				freeList = ref;
+				Native.wrMem(0, ref+OFF_PTR);
+			}
+			ref = next;
+		}
+		// promote the survivors, address order keeps the slide safe
+		if (!sorted) {
+			live = sortListByAddress(live);
+		}
+		int dst = copyPtr;
+		for (ref=live; ref!=0; ref=Native.rdMem(ref+OFF_NEXT)) {
+			int size = getObjectSize(ref);
+			int oldAddr = Native.rdMem(ref+OFF_PTR);
+			if (oldAddr != dst && size > 0) {
+				moveObject(dst, oldAddr, size);
+				Native.wrMem(dst, ref+OFF_PTR);
+			}
+			dst += size;
+			tail = ref;
+		}
+		if (tail != 0) {
+			Native.wrMem(useList, tail+OFF_NEXT);
+			useList = live;
+		}
+		copyPtr = dst;
+		allocPtr = heapStart + heapSize;
+
+		Native.invalidate();
+		Native.wr(0, Const.IO_GC_HALT);
+	}
+
+	/**
+	 * Collect the nursery when size words do not fit into it. A full
+	 * collection follows when the old generation leaves less than
+	 * two nurseries. Called with the mutex held.
+	 */
+	static void nurseryAlloc(int size) {
+		int top = heapStart + heapSize;
+		if (allocPtr == top || allocPtr-size >= top-nurserySize) {
+			return;
+		}
+		minorGc();
+		if (allocPtr-copyPtr < nurserySize<<1) {
+			gc();
+		}
+	}
+
+	/**
+	 * Ask the other cores to join a parallel collection.
+	 * @return false when not all have joined within GC_JOIN_US,
+	 * e.g. a core that does not allocate
+	 */
+	static boolean joinWorkers() {
+		int me = Native.rdMem(Const.IO_CPU_ID);
+		int core = coreBase;
+		for (int i=0; i<cpuCnt; ++i) {
+			Native.wrMem(PAR_IDLE, core+CORE_ACK);
+			core += CORE_WORDS;
+		}
+		Native.wrMem(PAR_JOIN, gcCtrl);
+		int start = Native.rd(Const.IO_US_CNT);
+		while (!allAcked(me, PAR_JOIN)) {
+			if (Native.rd(Const.IO_US_CNT)-start > GC_JOIN_US) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true when all other cores have finished phase
+	 */
+	static boolean allAcked(int me, int phase) {
+		int core = coreBase;
+		for (int i=0; i<cpuCnt; ++i) {
+			if (i != me && Native.rdMem(core+CORE_ACK) != phase) {
+				return false;
+			}
+			core += CORE_WORDS;
+		}
+		return true;
+	}
+
+	/**
+	 * A core that found a parallel collection request in tlabAlloc().
+	 * It holds no TLAB state and no lock here. It waits for the
+	 * phases set by the collecting core.
+	 */
+	static void gcWorker(int me) {
+		int core = coreBase + (me << CORE_SHIFT);
+		Native.wrMem(PAR_JOIN, core+CORE_ACK);
+		int phase = Native.rdMem(gcCtrl);
+		while (phase == PAR_JOIN) {
+			phase = Native.rdMem(gcCtrl);
+		}
+		if (phase == PAR_MARK) {
+			parallelMark(me, false);
+			Native.wrMem(PAR_MARK, core+CORE_ACK);
+			while (phase == PAR_MARK) {
+				phase = Native.rdMem(gcCtrl);
+			}
+		}
+		if (phase == PAR_COMPACT) {
+			parallelCompact(me);
+			Native.wrMem(PAR_COMPACT, core+CORE_ACK);
+			while (phase == PAR_COMPACT) {
+				phase = Native.rdMem(gcCtrl);
+			}
+		}
+		// objects have moved
+		Native.invalidate();
+	}
+
+	/**
+	 * The collecting core, it holds the mutex. All other cores
+	 * wait in gcWorker().
+	 */
+	static void parallelCollect() {
+		int me = Native.rdMem(Const.IO_CPU_ID);
+
+		tlabRetireAll();
+		grayList = GREY_END;
 		if (toSpace == 1) {
 			toSpace = 2;
 		} else {
 			toSpace = 1;
 		}
 
-		mark();
-		compactAndSweep();
+		int core = coreBase;
+		for (int i=0; i<cpuCnt; ++i) {
+			Native.wrMem(0, core+CORE_HUNGRY);
+			Native.wrMem(0, core+CORE_GIFT);
+			Native.wrMem(0, core+CORE_TAKEN);
+			Native.wrMem(0, core+CORE_STEP);
+			core += CORE_WORDS;
+		}
+		Native.wrMem(0, gcCtrl+CTRL_MARK_DONE);
 
-		// Zero the free region for fresh allocations.
-		// Replaces zapSemi() from the semi-space collector.
-		// Ensures newly allocated objects have zeroed fields
-		// (JVM spec: all fields default to 0/null).
-		for (int i = copyPtr; i < allocPtr; ++i) {
-			Native.wrMem(0, i);
+		Native.wrMem(PAR_MARK, gcCtrl);
+		parallelMark(me, true);
+		while (!allAcked(me, PAR_MARK)) {
+			;
+		}
+		markOverflow(me);
+		sweepLarge();
+
+		prepareRanges();
+		Native.wrMem(PAR_COMPACT, gcCtrl);
+		parallelCompact(me);
+		while (!allAcked(me, PAR_COMPACT)) {
+			;
 		}
+		joinRanges();
 
-		// Invalidate caches after compaction -- object data has moved
 		Native.invalidate();
+	}
 
-		// Resume other cores
-		Native.wr(0, Const.IO_GC_HALT);
+	/**
+	 * Mark from the own stack and every cpuCnt-th static field.
+	 * Each core scans only its own stack, which is on-chip memory.
+	 * Two cores may race on the same white object, then both scan
+	 * it, which is harmless. There are no shared lists.
+	 */
+	static void parallelMark(int me, boolean collector) {
+		int core = coreBase + (me << CORE_SHIFT);
+		int stack = markBase + (me << MARK_SHIFT);
+		int sp = 0;
+		int i;
+
+		Native.wrMem(0, core+CORE_OVERFLOW);
+		for (i=0; i<HIST_CNT; ++i) {
+			Native.wrMem(0, stack+MARK_HIST+i);
+		}
+		sp = scanStack(core, stack, sp);
+		int addr = Native.rdMem(addrStaticRefs);
+		int cnt = Native.rdMem(addrStaticRefs+1);
+		for (i=me; i<cnt; i+=cpuCnt) {
+			sp = markPush(core, stack, sp, Native.rdMem(addr+i));
+		}
+		markShared(me, collector, sp);
+	}
+
+	/**
+	 * Push a white handle on the mark stack of a core.
+	 * @return the new stack pointer
+	 */
+	static int markPush(int core, int stack, int sp, int ref) {
+		if (!isHandle(ref)) {
+			return sp;
+		}
+		if (Native.rdMem(ref+OFF_PTR)==0 || Native.rdMem(ref+OFF_SPACE)==toSpace) {
+			return sp;
+		}
+		if (sp == MARK_STACK) {
+			// rescanned by markOverflow()
+			Native.wrMem(1, core+CORE_OVERFLOW);
+			return sp;
+		}
+		Native.wrMem(ref, stack+sp);
+		return sp+1;
+	}
+
+	/**
+	 * Push the white children of a black object.
+	 * @return the new stack pointer
+	 */
+	static int markScan(int core, int stack, int sp, int ref) {
+		int i;
+		int addr = Native.rdMem(ref);
+		int flags = Native.rdMem(ref+OFF_TYPE) & TYPE_MASK;
+		if (flags==IS_REFARR) {
+			int size = Native.rdMem(ref+OFF_MTAB_ALEN);
+			for (i=0; i<size; ++i) {
+				sp = markPush(core, stack, sp, Native.rdMem(addr+i));
+			}
+		} else if (flags==IS_OBJ) {
+			flags = Native.rdMem(ref+OFF_MTAB_ALEN);
+			flags = Native.rdMem(flags+Const.MTAB2GC_INFO);
+			if (flags!=0) {
+				int cnt = Native.rdMem(flags);
+				for (i=1; i<=cnt; ++i) {
+					sp = markPush(core, stack, sp, Native.rdMem(addr+Native.rdMem(flags+i)));
+				}
+			}
+		}
+		return sp;
+	}
+
+	/**
+	 * Mark an object black and count its size in the live data
+	 * histogram of the core.
+	 */
+	static void markBlack(int stack, int ref) {
+		Native.wrMem(toSpace, ref+OFF_SPACE);
+		int h = stack + MARK_HIST + ((Native.rdMem(ref+OFF_PTR)-heapStart) >> histShift);
+		Native.wrMem(Native.rdMem(h)+getObjectSize(ref), h);
+	}
+
+	/**
+	 * Mark until the stack of this core is empty.
+	 */
+	static void markDrain(int core, int stack, int sp) {
+		while (sp != 0) {
+			--sp;
+			int ref = Native.rdMem(stack+sp);
+			if (Native.rdMem(ref+OFF_SPACE)==toSpace) {
+				continue;
+			}
+			markBlack(stack, ref);
+			sp = markScan(core, stack, sp, ref);
+		}
+	}
+
+	/**
+	 * Mark until all cores are out of work. JOP has no atomic
+	 * operation besides the global lock, so there is no stealing
+	 * from a shared deque: a core with work gives the upper half
+	 * of its stack to the next core in the ring when that one is
+	 * hungry. Each gift word has a single writer, the giver, and
+	 * is cleared by the taker. Work spreads around the ring
+	 * within a few gifts. The collecting core detects the end
+	 * with markDone().
+	 */
+	static void markShared(int me, boolean collector, int sp) {
+		int core = coreBase + (me << CORE_SHIFT);
+		int stack = markBase + (me << MARK_SHIFT);
+		int i, n;
+		int to = me+1;
+		if (to == cpuCnt) {
+			to = 0;
+		}
+		int next = coreBase + (to << CORE_SHIFT);
+		int gift = markBase + (to << MARK_SHIFT) + MARK_GIFT;
+
+		for (;;) {
+			while (sp != 0) {
+				--sp;
+				int ref = Native.rdMem(stack+sp);
+				if (Native.rdMem(ref+OFF_SPACE)==toSpace) {
+					continue;
+				}
+				markBlack(stack, ref);
+				sp = markScan(core, stack, sp, ref);
+				if (sp > 1 && Native.rdMem(next+CORE_HUNGRY) != 0
+						&& Native.rdMem(next+CORE_GIFT) == 0) {
+					n = sp >> 1;
+					if (n > GIFT_MAX) {
+						n = GIFT_MAX;
+					}
+					sp -= n;
+					for (i=0; i<n; ++i) {
+						Native.wrMem(Native.rdMem(stack+sp+i), gift+i);
+					}
+					// the handles before the count
+					Native.wrMem(n, next+CORE_GIFT);
+				}
+			}
+
+			Native.wrMem(1, core+CORE_HUNGRY);
+			for (;;) {
+				n = Native.rdMem(core+CORE_GIFT);
+				if (n != 0) {
+					// not hungry before the gift is gone, see markDone()
+					Native.wrMem(0, core+CORE_HUNGRY);
+					for (i=0; i<n; ++i) {
+						Native.wrMem(Native.rdMem(stack+MARK_GIFT+i), stack+i);
+					}
+					sp = n;
+					Native.wrMem(Native.rdMem(core+CORE_TAKEN)+1, core+CORE_TAKEN);
+					Native.wrMem(0, core+CORE_GIFT);
+					break;
+				}
+				if (collector) {
+					if (markDone()) {
+						Native.wrMem(1, gcCtrl+CTRL_MARK_DONE);
+						return;
+					}
+				} else if (Native.rdMem(gcCtrl+CTRL_MARK_DONE) != 0) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marking is done when all cores are hungry and no gift is
+	 * pending. A core may take a gift and give it on while we
+	 * read the flags one after the other, so the taken counters
+	 * must not change during the check.
+	 */
+	static boolean markDone() {
+		int taken = markTaken();
+		int core = coreBase;
+		for (int i=0; i<cpuCnt; ++i) {
+			if (Native.rdMem(core+CORE_HUNGRY) == 0 || Native.rdMem(core+CORE_GIFT) != 0) {
+				return false;
+			}
+			core += CORE_WORDS;
+		}
+		return taken == markTaken();
+	}
+
+	/**
+	 * @return the sum of the gifts taken by all cores
+	 */
+	static int markTaken() {
+		int taken = 0;
+		int core = coreBase;
+		for (int i=0; i<cpuCnt; ++i) {
+			taken += Native.rdMem(core+CORE_TAKEN);
+			core += CORE_WORDS;
+		}
+		return taken;
+	}
+
+	/**
+	 * Children that did not fit on a mark stack are still white.
+	 * Rescan the black objects until no mark stack overflows.
+	 * Runs on the collecting core only.
+	 */
+	static void markOverflow(int me) {
+		int core = coreBase + (me << CORE_SHIFT);
+		int stack = markBase + (me << MARK_SHIFT);
+		for (;;) {
+			boolean overflow = false;
+			int c = coreBase;
+			for (int i=0; i<cpuCnt; ++i) {
+				if (Native.rdMem(c+CORE_OVERFLOW) != 0) {
+					overflow = true;
+					Native.wrMem(0, c+CORE_OVERFLOW);
+				}
+				c += CORE_WORDS;
+			}
+			if (!overflow) {
+				return;
+			}
+			rescan(core, stack, useList);
+			rescan(core, stack, largeList);
+		}
+	}
+
+	/**
+	 * Scan the black objects of a handle list again.
+	 */
+	static void rescan(int core, int stack, int list) {
+		for (int ref=list; ref!=0; ref=Native.rdMem(ref+OFF_NEXT)) {
+			if (Native.rdMem(ref+OFF_SPACE)==toSpace) {
+				int sp = markScan(core, stack, 0, ref);
+				markDrain(core, stack, sp);
+			}
+		}
+	}
+
+	/**
+	 * Cut the heap into one address range per core with about the
+	 * same amount of live data, at the bucket boundaries of the
+	 * histograms from the mark phase. The histograms are summed up
+	 * in the one of core 0.
+	 */
+	static void prepareRanges() {
+		int i, j, h;
+		int sum = markBase + MARK_HIST;
+		int total = 0;
+		for (i=0; i<HIST_CNT; ++i) {
+			h = 0;
+			int c = sum+i;
+			for (j=0; j<cpuCnt; ++j) {
+				h += Native.rdMem(c);
+				c += MARK_WORDS;
+			}
+			Native.wrMem(h, sum+i);
+			total += h;
+		}
+
+		// core k starts where acc*cpuCnt reaches total*k,
+		// without multiplication
+		int core = coreBase;
+		int k = 1;
+		int acc = 0;
+		int need = total;
+		int addr = heapStart;
+		Native.wrMem(0, core+CORE_LO);
+		for (i=0; i<HIST_CNT && k<cpuCnt; ++i) {
+			h = Native.rdMem(sum+i);
+			for (j=0; j<cpuCnt; ++j) {
+				acc += h;
+			}
+			addr += 1 << histShift;
+			while (k<cpuCnt && acc>=need) {
+				Native.wrMem(addr, core+CORE_HI);
+				core += CORE_WORDS;
+				Native.wrMem(addr, core+CORE_LO);
+				need += total;
+				++k;
+			}
+		}
+		// the rest of the cores get empty ranges
+		for (; k<cpuCnt; ++k) {
+			Native.wrMem(PROGRESS_DONE, core+CORE_HI);
+			core += CORE_WORDS;
+			Native.wrMem(PROGRESS_DONE, core+CORE_LO);
+		}
+		Native.wrMem(PROGRESS_DONE, core+CORE_HI);
+	}
+
+	/**
+	 * Compact the objects in the address range of this core:
+	 * <ol>
+	 * <li>pick them from the use list, which all cores read, and
+	 * link them through OFF_GREY, which is not used in a
+	 * stop-the-world collection</li>
+	 * <li>when all cores are done with the use list, relink them
+	 * through OFF_NEXT, sort them and free the garbage</li>
+	 * <li>slide them down to the end of the live data of the
+	 * lower ranges</li>
+	 * </ol>
+	 * Ranges are in address order, so a core never writes into
+	 * the sources of a higher one. Before an object is written
+	 * the core waits until each lower core with sources in that
+	 * range has moved them (its CORE_PROGRESS is above the range).
+	 */
+	static void parallelCompact(int me) {
+		int core = coreBase + (me << CORE_SHIFT);
+		int lo = Native.rdMem(core+CORE_LO);
+		int hi = Native.rdMem(core+CORE_HI);
+		int ref, next, ptr, size, k;
+		int live = 0, liveTail = 0, dead = 0;
+
+		for (ref=useList; ref!=0; ref=Native.rdMem(ref+OFF_NEXT)) {
+			ptr = Native.rdMem(ref+OFF_PTR);
+			if (ptr>=lo && ptr<hi) {
+				if (Native.rdMem(ref+OFF_SPACE)==toSpace) {
+					// keep the order, the use list is nearly sorted
+					if (liveTail == 0) {
+						live = ref;
+					} else {
+						Native.wrMem(ref, liveTail+OFF_GREY);
+					}
+					liveTail = ref;
+				} else {
+					Native.wrMem(dead, ref+OFF_GREY);
+					dead = ref;
+				}
+			}
+		}
+		if (liveTail != 0) {
+			Native.wrMem(0, liveTail+OFF_GREY);
+		}
+		Native.wrMem(1, core+CORE_STEP);
+		waitStep(cpuCnt, 1);
+
+		int free = 0, freeTail = 0;
+		for (ref=dead; ref!=0; ref=next) {
+			next = Native.rdMem(ref+OFF_GREY);
+			Native.wrMem(0, ref+OFF_GREY);
+			Native.wrMem(0, ref+OFF_PTR);
+			Native.wrMem(free, ref+OFF_NEXT);
+			if (free == 0) {
+				freeTail = ref;
+			}
+			free = ref;
+		}
+		for (ref=live; ref!=0; ref=next) {
+			next = Native.rdMem(ref+OFF_GREY);
+			Native.wrMem(0, ref+OFF_GREY);
+			Native.wrMem(next, ref+OFF_NEXT);
+		}
+		live = sortListByAddress(live);
+
+		size = 0;
+		liveTail = 0;
+		for (ref=live; ref!=0; ref=Native.rdMem(ref+OFF_NEXT)) {
+			size += getObjectSize(ref);
+			liveTail = ref;
+		}
+		Native.wrMem(size, core+CORE_LIVE);
+		Native.wrMem(liveTail==0 ? 0 : Native.rdMem(liveTail+OFF_PTR)+getObjectSize(liveTail), core+CORE_SRC_END);
+		Native.wrMem(live==0 ? PROGRESS_DONE : Native.rdMem(live+OFF_PTR), core+CORE_PROGRESS);
+		Native.wrMem(2, core+CORE_STEP);
+
+		// the destination follows the live data of the lower ranges
+		waitStep(me, 2);
+		int dst = heapStart;
+		int c = coreBase;
+		for (k=0; k<me; ++k) {
+			dst += Native.rdMem(c+CORE_LIVE);
+			c += CORE_WORDS;
+		}
+
+		for (ref=live; ref!=0; ref=next) {
+			next = Native.rdMem(ref+OFF_NEXT);
+			size = getObjectSize(ref);
+			ptr = Native.rdMem(ref+OFF_PTR);
+			if (ptr != dst && size > 0) {
+				waitSources(me, dst, dst+size);
+				moveObject(dst, ptr, size);
+				Native.wrMem(dst, ref+OFF_PTR);
+			}
+			dst += size;
+			Native.wrMem(next==0 ? PROGRESS_DONE : Native.rdMem(next+OFF_PTR), core+CORE_PROGRESS);
+		}
+		Native.wrMem(live, core+CORE_USE);
+		Native.wrMem(liveTail, core+CORE_USE_TAIL);
+		Native.wrMem(free, core+CORE_FREE);
+		Native.wrMem(freeTail, core+CORE_FREE_TAIL);
+		Native.wrMem(dst, core+CORE_DST);
+	}
+
+	/**
+	 * Wait until the first cnt cores have reached step.
+	 */
+	static void waitStep(int cnt, int step) {
+		int core = coreBase;
+		for (int k=0; k<cnt; ++k) {
+			while (Native.rdMem(core+CORE_STEP) < step) {
+				;
+			}
+			core += CORE_WORDS;
+		}
+	}
+
+	/**
+	 * Wait until no lower core has unmoved sources in [from, to).
+	 */
+	static void waitSources(int me, int from, int to) {
+		int core = coreBase + (me << CORE_SHIFT);
+		for (int k=me-1; k>=0; --k) {
+			core -= CORE_WORDS;
+			int end = Native.rdMem(core+CORE_SRC_END);
+			// no live data in that range
+			if (end == 0) {
+				continue;
+			}
+			// this and all lower ranges are below
+			if (end <= from) {
+				return;
+			}
+			while (Native.rdMem(core+CORE_PROGRESS) < to) {
+				;
+			}
+		}
+	}
+
+	/**
+	 * Link the use and free lists of all ranges.
+	 */
+	static void joinRanges() {
+		int core = coreBase;
+		int tail = 0;
+		useList = 0;
+		for (int k=0; k<cpuCnt; ++k) {
+			int use = Native.rdMem(core+CORE_USE);
+			if (use != 0) {
+				if (tail == 0) {
+					useList = use;
+				} else {
+					Native.wrMem(use, tail+OFF_NEXT);
+				}
+				tail = Native.rdMem(core+CORE_USE_TAIL);
+			}
+			int free = Native.rdMem(core+CORE_FREE);
+			if (free != 0) {
+				Native.wrMem(freeList, Native.rdMem(core+CORE_FREE_TAIL)+OFF_NEXT);
+				freeList = free;
+			}
+			copyPtr = Native.rdMem(core+CORE_DST);
+			core += CORE_WORDS;
+		}
+		allocPtr = heapStart + heapSize;
 	}
 
 	static int free() {
-		return allocPtr-copyPtr;
+		synchronized (mutex) {
+			int words = allocPtr-copyPtr;
+			for (int blk=losFree; blk!=0; blk=Native.rdMem(blk+1)) {
+				words += Native.rdMem(blk);
+			}
+			return words;
+		}
 	}
 
 	/**
@@ -889,6 +2686,179 @@ public class GC {
 		return Startup.spm_size;
 	}
 
+	/**
+	 * Allocate from the TLAB of this core without the global lock.
+	 *
+	 * The buffer is only used by its core and outside of a mission,
+	 * as a preemptive thread switch in the middle would corrupt it.
+	 * An interrupt handler runs to completion, so it only has to see
+	 * TLAB_BUSY to take the global path. The GC halts the other
+	 * cores only when none of them is in here (see haltOthers()).
+	 *
+	 * @param size size in words
+	 * @param type handle type: IS_OBJ or array type
+	 * @param info method table or array length
+	 * @return the handle, or 0 to use the global path
+	 */
+	static int tlabAlloc(int size, int type, int info) {
+
+		if (!useTlab || RtThreadImpl.mission || size > TLAB_MAX_OBJ) {
+			return 0;
+		}
+		int me = Native.rdMem(Const.IO_CPU_ID);
+		int tlab = coreBase + (me << CORE_SHIFT);
+		if (Native.rdMem(tlab+TLAB_BUSY) != 0) {
+			return 0;
+		}
+		// another core collects in parallel, help it
+		if (Native.rdMem(gcCtrl) != PAR_IDLE) {
+			gcWorker(me);
+		}
+		int ptr, ref;
+		for (;;) {
+			Native.wrMem(1, tlab+TLAB_BUSY);
+			ptr = Native.rdMem(tlab+TLAB_PTR) - size;
+			ref = Native.rdMem(tlab+TLAB_FREE);
+			if (ptr >= Native.rdMem(tlab+TLAB_LIMIT) && ref != 0) {
+				break;
+			}
+			// the GC may halt us during the refill
+			Native.wrMem(0, tlab+TLAB_BUSY);
+			if (!tlabRefill(tlab, size)) {
+				return 0;
+			}
+		}
+
+		Native.wrMem(ptr, tlab+TLAB_PTR);
+		Native.wrMem(Native.rdMem(ref+OFF_NEXT), tlab+TLAB_FREE);
+		// Zero object data (JVM spec: fields default to 0/null)
+		for (int i = 0; i < size; i++) {
+			Native.wrMem(0, ptr + i);
+		}
+		// mark it as BLACK - means it is in current toSpace
+		Native.wrMem(toSpace, ref+OFF_SPACE);
+		Native.wrMem(0, ref+OFF_GREY);
+		Native.wrMem(type, ref+OFF_TYPE);
+		Native.wrMem(info, ref+OFF_MTAB_ALEN);
+		// pointer to real object, also marks it as non free
+		Native.wrMem(ptr, ref+OFF_PTR);
+		// the private use list goes to useList on retire
+		int use = Native.rdMem(tlab+TLAB_USE);
+		Native.wrMem(use, ref+OFF_NEXT);
+		if (use == 0) {
+			Native.wrMem(ref, tlab+TLAB_TAIL);
+		}
+		Native.wrMem(ref, tlab+TLAB_USE);
+
+		Native.wrMem(0, tlab+TLAB_BUSY);
+		return ref;
+	}
+
+	/**
+	 * Get a new buffer from allocPtr and/or new handles from freeList.
+	 * @return false when the global path shall allocate (and collect)
+	 */
+	static boolean tlabRefill(int tlab, int size) {
+		synchronized (mutex) {
+			tlabRetire(tlab);
+			if (Native.rdMem(tlab+TLAB_PTR)-size < Native.rdMem(tlab+TLAB_LIMIT)) {
+				if (nurserySize != 0) {
+					nurseryAlloc(TLAB_SIZE);
+				}
+				// the rest of the old buffer is left as a gap for compaction
+				if (copyPtr+TLAB_SIZE >= allocPtr) {
+					return false;
+				}
+				Native.wrMem(allocPtr, tlab+TLAB_PTR);
+				allocPtr -= TLAB_SIZE;
+				Native.wrMem(allocPtr, tlab+TLAB_LIMIT);
+			}
+			if (Native.rdMem(tlab+TLAB_FREE) == 0) {
+				int list = 0;
+				for (int i=0; i<TLAB_HANDLES && freeList!=0; ++i) {
+					int ref = freeList;
+					freeList = Native.rdMem(ref+OFF_NEXT);
+					Native.wrMem(list, ref+OFF_NEXT);
+					list = ref;
+				}
+				if (list == 0) {
+					return false;
+				}
+				Native.wrMem(list, tlab+TLAB_FREE);
+			}
+		}
+		// the free space check of the incremental GC
+		tryGcIncrement(0);
+		return true;
+	}
+
+	/**
+	 * Move the objects allocated in a TLAB to the global use list.
+	 * Called with the mutex held.
+	 */
+	static void tlabRetire(int tlab) {
+		int use = Native.rdMem(tlab+TLAB_USE);
+		if (use != 0) {
+			Native.wrMem(useList, Native.rdMem(tlab+TLAB_TAIL)+OFF_NEXT);
+			useList = use;
+			Native.wrMem(0, tlab+TLAB_USE);
+			Native.wrMem(0, tlab+TLAB_TAIL);
+		}
+	}
+
+	/**
+	 * Retire all TLABs before the heap is compacted: objects to
+	 * the use list, unused handles back to the free list. The
+	 * other cores are halted and none is in tlabAlloc().
+	 */
+	static void tlabRetireAll() {
+		if (!useTlab) {
+			return;
+		}
+		int tlab = coreBase;
+		for (int i=0; i<cpuCnt; ++i) {
+			tlabRetire(tlab);
+			Native.wrMem(0, tlab+TLAB_PTR);
+			Native.wrMem(0, tlab+TLAB_LIMIT);
+			int ref = Native.rdMem(tlab+TLAB_FREE);
+			while (ref != 0) {
+				int next = Native.rdMem(ref+OFF_NEXT);
+				Native.wrMem(freeList, ref+OFF_NEXT);
+				freeList = ref;
+				ref = next;
+			}
+			Native.wrMem(0, tlab+TLAB_FREE);
+			tlab += CORE_WORDS;
+		}
+	}
+
+	/**
+	 * Stop-the-world: halt all other cores, but not while one
+	 * of them is in the middle of a TLAB allocation.
+	 */
+	static void haltOthers() {
+		for (;;) {
+			Native.wr(1, Const.IO_GC_HALT);
+			if (!useTlab) {
+				return;
+			}
+			int me = Native.rdMem(Const.IO_CPU_ID);
+			int tlab = coreBase;
+			int i;
+			for (i=0; i<cpuCnt; ++i) {
+				if (i != me && Native.rdMem(tlab+TLAB_BUSY) != 0) {
+					break;
+				}
+				tlab += CORE_WORDS;
+			}
+			if (i == cpuCnt) {
+				return;
+			}
+			// let it finish
+			Native.wr(0, Const.IO_GC_HALT);
+		}
+	}
+
 	/**
 	 * Allocate a new Object. Invoked from JVM.f_new(cons);
 	 * @param cons pointer to class struct
@@ -942,20 +2912,30 @@ public class GC {
 			return ptr;
 		}
 
+		int ref = tlabAlloc(size, IS_OBJ, cons+Const.CLASS_HEADR);
+		if (ref != 0) {
+			if (gcPhase != PHASE_IDLE) {
+				tryGcIncrement(size);
+			}
+			return ref;
+		}
+
 		// that's the stop-the-world GC
 		// Note: mutex is null during first allocation, skip sync in that case
-		int ref;
 
 		if (mutex != null) {
 			synchronized (mutex) {
+				if (nurserySize != 0) {
+					nurseryAlloc(size);
+				}
 				if (copyPtr+size >= allocPtr) {
-					gc_alloc();
+					gc_alloc(size);
 					if (copyPtr+size >= allocPtr) {
 						throw OOMError;
 					}
 				}
 				if (freeList==0) {
-					gc_alloc();
+					gc_alloc(0);
 					if (freeList==0) {
 						throw OOMError;
 					}
@@ -1008,10 +2988,46 @@ public class GC {
 			Native.wrMem(cons+Const.CLASS_HEADR, ref+OFF_MTAB_ALEN);
 		}
 
-		tryGcIncrement();
+		tryGcIncrement(size);
 		return ref;
 	}
 
+	/**
+	 * Allocate a large array in the large-object space.
+	 * @param size size in words
+	 * @param type array type
+	 * @param length array length
+	 * @return the handle, or 0 to use the heap
+	 */
+	static int largeAlloc(int size, int type, int length) {
+		synchronized (mutex) {
+			// the heap path collects
+			if (freeList == 0) {
+				return 0;
+			}
+			int ptr = losAlloc(size);
+			if (ptr == 0) {
+				largeShort += size;
+				return 0;
+			}
+			// Zero array data (JVM spec: elements default to 0/null)
+			for (int i = 0; i < size; i++) {
+				Native.wrMem(0, ptr + i);
+			}
+			int ref = freeList;
+			freeList = Native.rdMem(ref+OFF_NEXT);
+			Native.wrMem(largeList, ref+OFF_NEXT);
+			largeList = ref;
+			Native.wrMem(ptr, ref+OFF_PTR);
+			// black, it is old for the nursery as well
+			Native.wrMem(toSpace, ref+OFF_SPACE);
+			Native.wrMem(0, ref+OFF_GREY);
+			Native.wrMem(type | IS_LARGE, ref+OFF_TYPE);
+			Native.wrMem(length, ref+OFF_MTAB_ALEN);
+			return ref;
+		}
+	}
+
 	public static int newArray(int size, int type) {
 		if (size < 0) {
 			throw new NegativeArraySizeException();
@@ -1067,12 +3083,37 @@ public class GC {
 			return ptr;
 		}
 
+		int ref = tlabAlloc(size, type, arrayLength);
+		if (ref != 0) {
+			if (gcPhase != PHASE_IDLE) {
+				tryGcIncrement(size);
+			}
+			return ref;
+		}
+		if (size >= LARGE_OBJ) {
+			ref = largeAlloc(size, type, arrayLength);
+			if (ref == 0 && copyPtr+size >= allocPtr && !Config.USE_SCOPES) {
+				// the collection frees large objects as well
+				synchronized (mutex) {
+					gc_alloc(size);
+				}
+				ref = largeAlloc(size, type, arrayLength);
+			}
+			if (ref != 0) {
+				tryGcIncrement(size);
+				return ref;
+			}
+		}
+
 		synchronized (mutex) {
+			if (nurserySize != 0) {
+				nurseryAlloc(size);
+			}
 			if (copyPtr+size >= allocPtr) {
 				if (Config.USE_SCOPES) {
 					throw OOMError;
 				} else {
-					gc_alloc();
+					gc_alloc(size);
 				}
 				if (copyPtr+size >= allocPtr) {
 					throw OOMError;
@@ -1084,7 +3125,7 @@ public class GC {
 				if (Config.USE_SCOPES) {
 					throw OOMError;
 				} else {
-					gc_alloc();
+					gc_alloc(0);
 					if (freeList==0) {
 						throw OOMError;
 					}
@@ -1092,7 +3133,6 @@ public class GC {
 			}
 		}
 
-		int ref;
 		synchronized (mutex) {
 			// we allocate from the upper part
 			allocPtr -= size;
@@ -1123,7 +3163,7 @@ public class GC {
 			// array length in the handle
 			Native.wrMem(arrayLength, ref+OFF_MTAB_ALEN);
 		}
-		tryGcIncrement();
+		tryGcIncrement(size);
 		return ref;
 
 	}
@@ -1140,16 +3180,15 @@ public class GC {
 	 * @return
 	 */
 	public static int totalMemory() {
-		return heapSize*4;
+		return (handleTop-heapStart)*4;
 	}
 
 	/**
 	 * Check if a given value is a valid handle.
 	 *
-	 * This method traverse the list of handles (in use) to check
-	 * if the handle provided belong to the list.
-	 *
-	 * It does *not* check the free handle list.
+	 * The value has to point to a handle in one of the handle
+	 * segments and the handle has to be in use. Handles of
+	 * objects in a TLAB are valid as well.
 	 *
 	 * One detail: the result may state that a handle to a
 	 * (still unknown garbage) object is valid, in case
@@ -1164,33 +3203,8 @@ public class GC {
 	 */
 	public static final boolean isValidObjectHandle(int handle)
 	{
-	  boolean isValid;
-	  int handlePointer;
-
-	  // assume it's not valid and try to show otherwise
-	  isValid = false;
-
-	  // synchronize on the GC lock
-	  synchronized (mutex) {
-		// start on the first element of the list
-	    handlePointer = useList;
-
-	    // traverse the list until the element is found or the list is over
-	    while(handlePointer != 0)
-	    {
-	      if(handle == handlePointer)
-	      {
-	    	// found it! hence, it's a valid handle. Stop the search.
-	    	isValid = true;
-	    	break;
-	      }
-
-	      // not found yet. Let's go to the next element and try again.
-	      handlePointer = Native.rdMem(handlePointer+OFF_NEXT);
-	    }
-	  }
-
-	  return isValid;
+	  // a free handle has no object
+	  return isHandle(handle) && Native.rdMem(handle+OFF_PTR) != 0;
 	}
 
   /**
@@ -1222,7 +3236,7 @@ public class GC {
       }
 
       // get information on the object type.
-      int type = Native.rdMem(handle + GC.OFF_TYPE);
+      int type = Native.rdMem(handle + GC.OFF_TYPE) & GC.TYPE_MASK;
 
       // if it's an object or reference array, execute the barrier
       if(type == GC.IS_REFARR)
@@ -1240,12 +3254,24 @@ public class GC {
 
 //        log("GCInfo field: ", gcInfo);
 
-        // if the correct bit is set for the field, it may hold a reference.
-        // then, execute the write barrier.
-        if((gcInfo & (0x01 << index)) != 0)
+        // if the field is in the (sorted) reference field list,
+        // it may hold a reference. then, execute the write barrier.
+        if(gcInfo != 0)
         {
-//          log("Field can hold a reference. Execute barrier!");
-          shouldExecuteBarrier = true;
+          int cnt = Native.rdMem(gcInfo);
+          for(int i = 1; i <= cnt; ++i)
+          {
+            int idx = Native.rdMem(gcInfo + i);
+            if(idx >= index)
+            {
+              if(idx == index)
+              {
+//                log("Field can hold a reference. Execute barrier!");
+                shouldExecuteBarrier = true;
+              }
+              break;
+            }
+          }
         }
       }
 
@@ -91,19 +91,20 @@ public class JVM {
 	static void f_fastore() { JVMHelp.noim(); /* jvm.asm */ }
 	static void f_dastore() { JVMHelp.noim();}
 	static void f_aastore(int ref, int index, int value) {
-		synchronized (GC.mutex) {
+		if (GC.barrier) {
 			// snapshot-at-beginning barrier
-			int oldVal = Native.arrayLoad(ref, index);
-			// Is it white?
-			if (oldVal != 0
-				&& Native.rdMem(oldVal+GC.OFF_SPACE) != GC.toSpace
-				&& Native.rdMem(oldVal+GC.OFF_GREY)==0) {
-				// Mark grey
-				Native.wrMem(GC.grayList, oldVal+GC.OFF_GREY);
-				GC.grayList = oldVal;			
-			}				
-			Native.arrayStore(ref, index, value);
+			GC.satbLog(Native.arrayLoad(ref, index));
+			// old to young references of the nursery
+			GC.remember(ref, value);
+			// an incremental compaction step may move the object
+			if (GC.gcPhase == GC.PHASE_COMPACT) {
+				synchronized (GC.mutex) {
+					Native.arrayStore(ref, index, value);
+				}
+				return;
+			}
 		}
+		Native.arrayStore(ref, index, value);
 	}
 	static void f_bastore() { JVMHelp.noim(); /* jvm.asm */ }
 	static void f_castore() { JVMHelp.noim(); /* jvm.asm */ }
@@ -911,33 +912,26 @@ public class JVM {
 	static void f_resDF() { JVMHelp.noim();}
 	static void f_resE0() { JVMHelp.noim();}
 	static void f_putstatic_ref(int val, int addr) {
-		synchronized (GC.mutex) {
-		// snapshot-at-beginning barrier
-			int oldVal = Native.getStatic(addr);
-			// Is it white?
-			if (oldVal != 0
-				&& Native.rdMem(oldVal+GC.OFF_SPACE) != GC.toSpace
-				&& Native.rdMem(oldVal+GC.OFF_GREY)==0) {
-				// Mark grey
-				Native.wrMem(GC.grayList, oldVal+GC.OFF_GREY);
-				GC.grayList = oldVal;
-			}				
+		if (GC.barrier) {
+			// snapshot-at-beginning barrier
+			GC.satbLog(Native.getStatic(addr));
 		}
 		Native.putStatic(val, addr);
 	}
 	static void f_resE2() { JVMHelp.noim();}
 	static void f_putfield_ref(int ref, int value, int index) {
-		synchronized (GC.mutex) {
+		if (GC.barrier) {
 			// snapshot-at-beginning barrier
-			int oldVal = Native.getField(ref, index);
-			// Is it white?
-			if (oldVal != 0
-				&& Native.rdMem(oldVal+GC.OFF_SPACE) != GC.toSpace
-				&& Native.rdMem(oldVal+GC.OFF_GREY)==0) {
-				// Mark grey
-				Native.wrMem(GC.grayList, oldVal+GC.OFF_GREY);
-				GC.grayList = oldVal;
-			}				
+			GC.satbLog(Native.getField(ref, index));
+			// old to young references of the nursery
+			GC.remember(ref, value);
+			// an incremental compaction step may move the object
+			if (GC.gcPhase == GC.PHASE_COMPACT) {
+				synchronized (GC.mutex) {
+					Native.putField(ref, index, value);
+				}
+				return;
+			}
 		}
 		Native.putField(ref, index, value);
 	}
@@ -5,6 +5,7 @@ import java.io.PrintStream;
 
 import com.jopdesign.io.JOPInputStream;
 import com.jopdesign.io.JOPOutputStream;
+import com.jopdesign.sys.GC;
 import com.jopdesign.sys.Native;
 import com.jopdesign.sys.Startup;
 
@@ -70,6 +71,8 @@ public class System {
 			// Invalidate array cache (A$): wrMem bypasses A$, so any
 			// cached entries for the destination array are now stale.
 			Native.invalidate();
+			// the copy bypasses the reference store barrier
+			GC.arrayCopied(dstHandle);
 //		}
 	}
 }
@@ -36,53 +36,26 @@ import org.apache.bcel.verifier.structurals.*;
  * incoming (ie. how the locals and the operands) frame looked for this
  * particular value of the program counter (PC). Then the information must reach
  * JOP. It is done by saving the garbage collection (GC) information below the
- * code address. We save one word that is packed with information about max.
- * number of local, max. number of operands etc. Then, if the method has ANY
- * reference for ANY value of the PC, the GC information is saved below this
- * info word. That is the case in the majority of the cases. As we need the type
- * (primitive or reference) for every local and every operand for every value of
- * the PC it can take up a lot of space. Initial experiments demonstrated an
- * overhead of 133% but now the default is an indexed approach. In this way the
- * X local bits and the Y operand bits are appended to form a pattern. These
- * patterns form a small number of unique patterns. Each PC is then mapped
- * (using just enough bits) to point to the corresponding unique pattern. The
- * unique patterns are packed at the end of bit map. When reading the file, we
- * refer to the "raw" and "indexed" approach. The raw aproach was saving the
- * aforementioned patterns for every PC. On JOP, a class called GCStkWalk is
- * responsible for identifying the references that may be among the locals and
- * the operands for the threads. A method named <code>swk</code> is
- * responsible for this scan. It walks the frames from the top and uses the
- * packes GC bit maps to determine which (if any) of the locals and operands
- * that hold references. It then returns a reference to an integer array that is
- * used in <code>GC.java</code> to push only the references onto into the
- * scanned list. Little note: The bits are written out from left to right in the
- * comments. The sum of the locals+operands cannot exceed 32. TODO: Test a
- * Gosling violation. TODO: Implement bytecode rearrangement when Gosling
- * violation detected.
+ * code address. Frames below the top of the stack are stopped at a call
+ * site: an invoke or a bytecode that JOP implements in Java and that can
+ * allocate (new, newarray, anewarray). For each call site the references
+ * among the locals and the operands below the callee's arguments are packed
+ * into one word and saved together with the return PC, see
+ * <code>dumpMethodGcis</code>. <code>GC.scanStack()</code> walks the frames
+ * from the top and pushes only the slots marked in the map of the return PC.
+ * Frames without a map (interrupts, exceptions, call sites that do not fit
+ * into one word) are scanned conservatively. Little note: The bits are
+ * written out from left to right in the comments. TODO: Test a Gosling
+ * violation. TODO: Implement bytecode rearrangement when Gosling violation
+ * detected.
  * 
  * @author rup, ms
  */
 public class GCRTMethodInfo {
 	static int WORDLEN = 32;
 
-	static int totalpcwords = 0;
-
-	static int totalcntMgciWords = 0;
-
 	static HashMap miMap = new HashMap();
-  
-  //  those methods with gc info 
-  //  (provided by a call to CallGraph?) 
-  static HashSet gcMethods = null;
-  
-  /**
-   * Contains the set of methods which are included in the stack map generation.
-   * @param gcMethods
-   */
-  public static void setGcMethods(HashSet gcMethods) {
-    GCRTMethodInfo.gcMethods = gcMethods;
-  }
-  
+
 	/**
 	 * Called from JOPizer->SetGCRTMethodInfo to run the stack simulation for
 	 * the method.
@@ -125,14 +98,18 @@ public class GCRTMethodInfo {
 
 	Method method;
 
-	int length;
-
 	// Operand map for a given PC
 	int[] ogci;
 
 	// Local variables map for a given PC
 	int[] mgci;
 
+	// Region+1 of a call site at the last byte of the instruction
+	int[] site;
+
+	// Locals and operand map of a call site
+	int[] siteMap;
+
 	// Instruction count
 	int instCnt;
 
@@ -141,9 +118,6 @@ public class GCRTMethodInfo {
 
 	int mstack, margs, mreallocals, len;
 
-  // word counters for indexed approach
-  int pcwords = 0;
-  
   String tostr;
   String signature;
   String name;  
@@ -158,8 +132,9 @@ public class GCRTMethodInfo {
 
 		mgci = new int[0];
 		ogci = new int[0];
+		site = new int[0];
+		siteMap = new int[0];
 		instCnt = 0;
-		length = 0;
 		if (miMap.containsKey(mi)) {
 			System.err.println("Alredy added mi.");
 			System.exit(-1);
@@ -191,17 +166,12 @@ public class GCRTMethodInfo {
 			margs++; //  this
 		}
 
-		if (!method.isAbstract()) {
+		if (!method.isAbstract() && method.getCode() != null) {
 			mstack = method.getCode().getMaxStack();
 			mreallocals = method.getCode().getMaxLocals() - margs;
-      
-      if ((mreallocals+margs+mstack)>31) {
-        // we interprete clinit on JOP - no size restriction
-        if (!method.getName().equals("<clinit>")) {
-          System.err.println("wrong size: "+method.getName()+" cannot have (mreallocals+margs+mstack)>31");
-          System.exit(-1);          
-        }
-      }
+
+			// A call site whose locals and operands do not fit into
+			// one map word gets no map and is scanned conservatively.
 
 			instCnt = (method.getCode().getCode()).length;
       
@@ -233,7 +203,7 @@ public class GCRTMethodInfo {
 
 		icv.setConstantPoolGen(cpg);
 
-		ExecutionVisitor ev = new ExecutionVisitor();
+		ExecutionVisitor ev = new AnExecutionVisitor();
 		ev.setConstantPoolGen(cpg);
 
 		MethodGen mg = new MethodGen(method, jc.getClassName(), cpg);
@@ -432,14 +402,10 @@ public class GCRTMethodInfo {
 //								.getStack().getClone());
 //						lva[v.getInstruction().getPosition()].add(fStart
 //								.getLocals().getClone());
-						Frame prevf = (Frame)inFrames.put(v,u.getOutFrame(oldchain));
-						Frame newf = v.getOutFrame(newchain);
-						Frame prevof = (Frame)outFrames.put(v,newf);
-						if (prevof != null && !frmComp(prevof,newf,v)){
-							System.out.println("B: Gosling violation:"
-									+ fStart.toString());
-							System.exit(-1);
-						}
+						// different types at a join are merged by execute(),
+						// the merged in frame is used for the maps
+						inFrames.put(v,u.getOutFrame(oldchain));
+						outFrames.put(v,v.getOutFrame(newchain));
 					}
 				}// end "not a ret"
 
@@ -466,14 +432,8 @@ public class GCRTMethodInfo {
 //							.getClone());
 //					lva[v.getInstruction().getPosition()].add(fStart
 //							.getLocals().getClone());
-					Frame prevf = (Frame)inFrames.put(v,f);
-					Frame newf = v.getOutFrame(new ArrayList());
-					Frame prevof = (Frame)outFrames.put(v,newf);
-					if (prevof != null && !frmComp(prevof,newf,v)){							
-						System.err.println("C: Gosling violation:"
-								+ prevf.toString()+newf.toString());
-						System.exit(-1);
-					}
+					inFrames.put(v,f);
+					outFrames.put(v,v.getOutFrame(new ArrayList()));
 					
 				}
 			}// while (!ics.isEmpty()) END
@@ -497,6 +457,8 @@ public class GCRTMethodInfo {
 			ogci = new int[instCnt];
 			// This array holds the local type bits in the low bits
 			mgci = new int[instCnt];
+			site = new int[instCnt];
+			siteMap = new int[instCnt];
 			pcinfo = new String[instCnt];
 			int oldPC = 0;
 			int PC = 0;
@@ -526,7 +488,7 @@ public class GCRTMethodInfo {
 				// System.out.println(ih.toString()+" tag:"+ic.getTag());
 				// It is here the incoming frame is used to achieve the desired
 				// PC->operand mapping
-				Frame f1 = (Frame) inFrames.get(ic);
+				Frame f1 = ic.getInFrame();
 				LocalVariables lvs = f1.getLocals();
 				// mapping the all the locals for this value of the PC
 				for (int i = 0; i < lvs.maxLocals(); i++) {
@@ -571,6 +533,23 @@ public class GCRTMethodInfo {
 				}
 				// System.out.println(" ogci["+PC+"]:"+bitStr(ogci[PC]));
 
+				// The frame of a caller as the GC sees it: locals and the
+				// operands below the arguments, keyed by the return PC
+				int region = callRegion(ih.getInstruction(), os.slotsUsed(), cpg);
+				int nloc = margs + mreallocals;
+				if (region >= 0 && nloc + region < WORDLEN
+						&& os.slotsUsed() <= WORDLEN) {
+					int last = PC + ih.getInstruction().getLength() - 1;
+					int map = mgci[PC];
+					for (int k = 0; k < region; k++) {
+						if ((ogci[PC] & (1 << (os.slotsUsed() - 1 - k))) != 0) {
+							map |= 1 << (nloc + k);
+						}
+					}
+					site[last] = region + 1;
+					siteMap[last] = map;
+				}
+
 				// This frame is post (after) the instruction and thus not what
 				// we need
 				Frame f2 = ic.getOutFrame(new ArrayList());
@@ -632,15 +611,6 @@ public class GCRTMethodInfo {
 				// System.out.println(pcinfo[i]+" mgci["+i+"]"+bitStr(mgci[i]));
 			}
 			// System.out.println("--");
-
-			// calculate length for raw method
-			int varcnt = mstack + mreallocals + margs;
-			int pos = instCnt * varcnt;
-			length = pos / WORDLEN; // whole words
-			if ((pos % WORDLEN) > 0) {
-				length++; // partly used word
-			}
-			length++; // gcpack
 		} // if has code
 	}
 
@@ -818,476 +788,94 @@ public class GCRTMethodInfo {
 	}
 */
 	/**
-	 * It dumps the local variable and stack operands GC info structures. Can be
-	 * called with out==null to get the word length. If the method is <code>
-   * clinit</code> then the stackmap is not written out.
+	 * It dumps the call site maps below the method code. Can be called
+	 * with out==null to get the word length.
+	 * 
+	 * The word directly below the code holds the number of call sites n.
+	 * Below it are n pairs of words in ascending return PC order: first
+	 * <code>retpc&lt;&lt;8 | region</code>, then the reference bit map of
+	 * the frame. Bit i of the map is local variable i (arguments first),
+	 * bit (args+locals+j) is operand slot j counted from the bottom of
+	 * the operand stack. region is the number of operand slots below the
+	 * arguments of the callee. GC.scanStack() uses a map only when the
+	 * frame has exactly this region, other frames are scanned
+	 * conservatively.
 	 */
 	public int dumpMethodGcis(PrintWriter out) {
-		// System.out.println("dumpMethodGcis(PrintWriter out):"+out+",
-		// mi.methodId:"+mi.methodId);
-
-		int GCIHEADERLENGTH = 1; // key, gcpack
-
-		// gcpack
-		int UNICNTLEN = 10; // worst case if every PC has a unique pattern
-		int INSTRLEN = 10; // 1024 instructions
-		int MAXSTACKLEN = 5; // max 31 operands
-		int MAXLOCALSLEN = 5; // max 31 args+locals
-		int LOCALMARKLEN = 1; // 1 if local references
-		int STACKMARKLEN = 1; // 1 if stack references
-
-		int cntMgciWords = 0;
-		int localmark = 0;
-		int stackmark = 0;
-		int ogcimark = 0;
-		int mgcimark = 0;
-    
-    if(gcMethods != null && gcMethods.contains(method)){
-      if(out != null){
-        out.println("\n\t// no stackwalker info for "
-            + mi.getCli().clazz.getClassName() + "." + mi.methodId +" because cfgReduce == true and gcMethods.contains(method)\n");
-      }
-
-      return 0;
-    }
-      
-    
-    
-		// if(mi.code != null){ // not abstract
-		if (!method.isAbstract()) {
-			if (instCnt != mgci.length || instCnt != ogci.length) {
-				System.err
-						.println("exit: instCnt!=mgci.length || instCnt!=ogci.length");
-				System.exit(-1);
-			}
-
-			if (out != null) {
-				out.println("\n\t//stackwalker info for "
-						+ mi.getCli().clazz.getClassName() + "." + mi.methodId);
-			}
-
-			StringBuffer sb = new StringBuffer();
-			int mask = 0x01;
-			int WORDLEN = 32;
-			// raw packing
-			int[] bitMap = new int[2 * instCnt];
-			StringBuffer[] bitInfo = new StringBuffer[2 * instCnt];
-			for (int i = 0; i < instCnt; i++) {
-				bitInfo[i] = new StringBuffer();
-				bitInfo[i].append("[bit,pos,index,offset,mgci or ogci]:");
-			}
-
-			int pos = 0;
-			int index = 0;
-
-			// raw patterns later used to determine unique patterns and the
-			// index
-			int pattern[] = new int[instCnt];
-
-			// pack bitMap
-			for (int i = 0; i < instCnt; i++) {
-				// used for Ref. reduction in paper
-				if (mgci[i] > 0) {
-					mgcimark = 1;
-				}
-				if (ogci[i] > 0) {
-					ogcimark = 1;
-				}
-				// pack locals in high bits
-				// pattern[i] is also done here
-				for (int j = 0; j < (mreallocals + margs); j++) {
-					int bit = (mgci[i] >>> j) & mask;
-
-					pattern[i] |= bit << (j + mstack); // (pattern[i]<<1)|
-
-					index = pos / WORDLEN;
-					int offset = pos % WORDLEN;
-					bit = bit << offset;
-					bitMap[index] |= bit;
-					bitInfo[index].append("[" + bit + "," + pos + "," + index
-							+ "," + offset + "," + "mgci[" + i + "][" + j
-							+ "]] ");
-					pos++;
-				}
-				// pack stack in low bits
-				for (int j = 0; j < mstack; j++) {
-					int bit = (ogci[i] >>> j) & mask;
-
-					pattern[i] |= bit << j;
-
-					index = pos / WORDLEN;
-					int offset = pos % WORDLEN;
-					bit = bit << offset;
-					bitMap[index] |= bit;
-					bitInfo[index].append("[" + bit + "," + pos + "," + index
-							+ "," + offset + "," + "ogci[" + i + "][" + j
-							+ "]] ");
-					pos++;
-				}
-			}// for
-
-			// packing bitMap2 according to the reduced indexed method.
-			// identify the unique patterns
-			int unique = 0;
-			int uniquepattern[] = new int[instCnt];
-			boolean match;
-			for (int i = 0; i < instCnt; i++) {
-				match = false;
-				for (int j = 0; j < unique; j++) {
-					if (pattern[i] == uniquepattern[j]) {
-						match = true;
-						break;
-					}
-				}
-				if (!match) {
-					uniquepattern[unique] = pattern[i];
-					// System.out.println("uniquepattern["+unique+"]="+bitStr(uniquepattern[unique]));
-					unique++;
-				}
-			}
-
-			// bits needed for unique patterns
-			int patbits = unique * (mreallocals + margs + mstack);
 
-			// used in a paper
-			if (false) { // index2 reduction
-				if (mgcimark == 0) {
-					patbits -= unique * (mreallocals + margs);
-				}
-				if (ogcimark == 0) {
-					patbits -= unique * (mstack);
-				}
-			}
-
-			// count index bits
-			int num = 1;
-			int indexbits = 0;
-			for (int i = 1; i < 32; i++) {
-				if (num < unique) {
-					num = (num << 1) | 1;
-				} else {
-					indexbits = i;
-					break;
-				}
-			}
-			// count bits used on indexing
-			int pcbits = indexbits * instCnt;
-			int totalbits = pcbits + patbits;
-
-			// total words for bitmap
-			int wdc = totalbits / 32;
-			if (totalbits % 32 > 0) {
-				wdc++;
-			}
-
-			// now make the indexed bitmaps
-			int bitMap2[] = new int[wdc];
-			StringBuffer[] bitInfo2 = new StringBuffer[wdc];
-			for (int i = 0; i < wdc; i++) {
-				bitInfo2[i] = new StringBuffer();
+		int cnt = 0;
+		for (int i = 0; i < site.length; i++) {
+			if (site[i] != 0) {
+				cnt++;
 			}
-			int bitpos = 0;
-
-			// bit map the indexes
-			for (int i = 0; i < instCnt; i++) {
-				match = false;
-				for (int j = 0; j < unique; j++) {
-					if (pattern[i] == uniquepattern[j]) {
-						int control = 0;
-						bitInfo2[bitpos / 32].append(" p" + i + "=up" + j
-								+ ":[" + bitpos + ":");
-						for (int k = 0; k < indexbits; k++) {
-							int index2 = bitpos / 32;
-							int offset2 = bitpos % 32;
-							int bit = (j >>> k) & 0x01;
-							control |= (bit << k);
-							bitMap2[index2] |= (bit << offset2);
-							bitInfo2[index2].append(bit);
-							if (k == indexbits - 1) {
-								bitInfo2[index2].append("]");
-							}
-							bitpos++;
-						}
-
-						// System.out.println("pattern["+i+"]==uniquepattern["+j+"]");
-						// System.out.println("control:"+control);
-						match = true;
-						break;
-					}
-				} // for unique
-				if (!match) {
-					System.err.println("Problem with uniquematch for PC:" + i);
-					System.exit(-1);
-				}
-			}
-
-			// bit map the unique patterns
-			for (int i = 0; i < unique; i++) {
-				bitInfo2[bitpos / 32].append(" up" + i + ":[" + bitpos + ":");
-				for (int j = 0; j < (mreallocals + margs + mstack); j++) {
-					int index2 = bitpos / 32;
-					int offset2 = bitpos % 32;
-					int bit = (uniquepattern[i] >>> j) & 0x01;
-					bitMap2[index2] |= (bit << offset2);
-					bitInfo2[index2].append(bit);
-					if (j == (mreallocals + margs + mstack) - 1) {
-						bitInfo2[index2].append("]");
-					}
-					bitpos++;
-				}
-			}
-
-			// pack gcpack
-			int gcpack = unique; // unique patterns
-			gcpack = (gcpack << INSTRLEN) | instCnt;
-			gcpack = (gcpack << MAXSTACKLEN) | mstack;
-			gcpack = (gcpack << MAXLOCALSLEN) | (mreallocals + margs);
-
-			if ((mreallocals + margs) > 0) {
-				localmark = 1;
-			}
-			// gcpack = (gcpack<<LOCALMARKLEN)|(localmark); // dump bit maps
-			// even if no refs
-			gcpack = (gcpack << LOCALMARKLEN) | (mgcimark); // only dump map
-			// when a ref is
-			// among the
-			// operands "Ref.
-			// only" in paper
-
-			if (mstack > 0) {
-				stackmark = 1;
+		}
+		if (out != null) {
+			if (cnt != 0) {
+				out.println("\t// stack maps for "
+						+ mi.getCli().clazz.getClassName() + "." + mi.methodId);
 			}
-			// gcpack = (gcpack<<STACKMARKLEN)|(stackmark); // see above
-			gcpack = (gcpack << STACKMARKLEN) | (ogcimark);
-
-			// System.out.println("dumpMethodGcis Class
-			// method:"+mi.cli.clazz.getClassName()+"."+mi.methodId);
-			// System.out.println("patbits:"+patbits);
-			// System.out.println("pcbits:"+pcbits);
-			// System.out.println("unique:"+unique);
-			// System.out.println("instCnt:"+instCnt);
-			// System.out.println("indexbits:"+indexbits);
-			// System.out.println("locals:"+(mreallocals+margs));
-			// System.out.println("localmark:"+localmark);
-			// System.out.println("stack:"+mstack);
-			// System.out.println("stackmark:"+stackmark);
-			// System.out.println("index="+index+"
-			// bitMap.length:"+bitMap.length+" instCnt:"+instCnt+" pos:"+pos);
-			pcwords = 1; // set this to 0 or 1 depending if gcpack is written
-			// out
-
-      //Don't write stackmap for <clinit> methods
-      if(method.getName().equals("<clinit>")){
-        gcpack = 0;
-        localmark = 0;
-        stackmark = 0;
-        mgcimark = 0;
-        ogcimark = 0;
-      } // just check that the bitMap can be reconstructed from bitMap2 
-      else if (!compareBitMap(bitMap, bitMap2, gcpack, mgci, ogci)) {
-        System.err.println("Error in the bitmaps.");
-        System.exit(-1);
-      }
-      
-			// can also use localmark and stackmark here if bit maps are needed
-			// regardless
-			// of the presense of references
-			if (instCnt > 0 && (mgcimark == 1 || ogcimark == 1)) {
-				pcwords += (patbits + pcbits) / 32;
-				if (((patbits + pcbits) % 32) > 0) {
-					pcwords++;
-				}
-				// change flag below and also on in setMarkWords() in GCStkWalk
-				if (true) { // write out indexed version
-					for (int i = 0; i < wdc; i++) {
-						if (out != null) {
-							out.println("\t" + bitMap2[i] + ",//\tbitMap2["
-									+ i + "]: " + bitInfo2[i].toString() + ", "
-									+ bitStr(bitMap2[i]));
-						}
-						cntMgciWords++;
-					}
-          //debug
-          for (int i = 0; i < instCnt; i++) {
-            if (out != null) {
-              out.println("\t// mgci["+i+"]:"+bitStr(mgci[i])+" ogci["+i+"]:"+bitStr(ogci[i]));
-            }
-          }
-				} else // write out raw version
-				{
-					for (int i = 0; i <= index; i++) {
-						if (out != null) {
-							// out.println("\t\t//\tbitMap["+i+"]:"+bitStr(bitMap[i])+"
-							// "+bitInfo[i].toString());
-							out.println("\t\t" + bitMap[i] + ",//\tbitMap[" + i
-									+ "]:" + bitStr(bitMap[i]));
-						}
-						cntMgciWords++;
-					}
+			for (int i = 0; i < site.length; i++) {
+				if (site[i] != 0) {
+					int retpc = i + 1;
+					int region = site[i] - 1;
+					out.println("\t\t" + ((retpc << 8) | region) + ",\t// retpc="
+							+ retpc + " region=" + region);
+					out.println("\t\t" + siteMap[i] + ",\t// " + bitStr(siteMap[i]));
 				}
 			}
-
-			cntMgciWords += GCIHEADERLENGTH;
-			if (out != null) {
-				out.println("\t" + gcpack + ",//\tgcpack[0:stackmark="
-						+ stackmark + ",1:localmark=" + localmark
-						+ ",2-6:maxlocals=" + (mreallocals + margs)
-						+ ",7-11:maxstack=" + mstack + ",12-21:instr="
-						+ instCnt + ",22-31:unicnt=" + unique
-						+ "] indexbits(to index unique):" + indexbits
-						+ " gcpack:" + bitStr(gcpack));
-			}
-
-			// System.out.println("cntMgciWords:"+cntMgciWords);
-			// System.out.println("pcwords:"+pcwords);
-			if (out != null) {
-				totalpcwords += pcwords;
-				totalcntMgciWords += cntMgciWords;
-			}
-			// System.out.println("totalpcwords:"+totalpcwords);
-			// System.out.println("totalcntMgciWords:"+totalcntMgciWords);
-			// System.out.println("--");
-
-		} // if not abstract
-		// System.err.println("dumpMethodGcis
-		// method:"+cli.clazz.getClassName()+"."+methodId);
-		// System.err.println("out MethodInfo.cntMgci:"+MethodInfo.cntMgci+"
-		// MethodInfo.cntMgciWords:"+MethodInfo.cntMgciWords);
-		// System.err.println("index="+index+" bitMap.length:"+bitMap.length+"
-		// instCnt:"+instCnt+" mreallocals:"+mreallocals+" margs:"+margs +"
-		// mstack:"+mstack+" pos:"+pos);
-		// System.err.println("method.isAbstract():"+method.isAbstract());
-		// System.err.println("...");
-		// System.out.println("cntMgciWords:"+cntMgciWords);
-		return cntMgciWords;
+			out.println("\t\t" + cnt + ",\t// call sites");
+		}
+		return 2 * cnt + 1;
 	}
-  
-  /**
-   * Called with a pc (program counter) value which will be removed from the 
-   * mgci and ogci structures. The <oode>instCnt</code> is also decremented by
-   * one.
-   * @param pc
-   * @return true if pc<instCnt
-   */
-  public void removePC(int pc){
-    
-    if(gcMethods != null && gcMethods.contains(method))
-      return;
-    
-    int oldogci[] = ogci;
-    int oldmgci[] = mgci;
-    ogci = new int[instCnt-1];
-    mgci = new int[instCnt-1];
-      
-    if(pc==0){
-      System.arraycopy(oldogci,1,ogci,0,instCnt-1);        
-      System.arraycopy(oldmgci,1,mgci,0,instCnt-1);
-    } else if(pc==instCnt-1){
-      System.arraycopy(oldogci,0,ogci,0,instCnt-1);
-      System.arraycopy(oldmgci,0,mgci,0,instCnt-1);
-    }
-    else{
-      System.arraycopy(oldogci,0,ogci,0,pc);
-      System.arraycopy(oldogci,pc+1,ogci,pc,instCnt-1-pc);
-      System.arraycopy(oldmgci,0,mgci,0,pc);
-      System.arraycopy(oldmgci,pc+1,mgci,pc,instCnt-1-pc);
-    }
-    
-    //reduce instcnt accordingly
-    instCnt--;
-  }
 
-	// Sanity checking the bitmaps by unpacking both and comparing
-	boolean compareBitMap(int bitMap[], int bitMap2[], int gcpack, int mcgi[],
-			int ocgi[]) {
-		boolean compareresult = true;
-
-		int UNICNTLEN = 10; // worst case if every PC has a unique pattern
-		int INSTRLEN = 10; // 1024 instructions
-		int MAXSTACKLEN = 5; // max 31 operands
-		int MAXLOCALSLEN = 5; // max 31 args+locals
-		int LOCALMARKLEN = 1; // 1 if local references
-		int STACKMARKLEN = 1; // 1 if stack references
-
-		int unicnt = (gcpack >>> (INSTRLEN + MAXSTACKLEN + MAXLOCALSLEN
-				+ LOCALMARKLEN + STACKMARKLEN)) & 0x03ff;
-		int instr = (gcpack >>> (MAXSTACKLEN + MAXLOCALSLEN + LOCALMARKLEN + STACKMARKLEN)) & 0x03ff;
-		int maxstack = (gcpack >>> (MAXLOCALSLEN + LOCALMARKLEN + STACKMARKLEN)) & 0x1f;
-		int maxlocals = (gcpack >>> (LOCALMARKLEN + STACKMARKLEN)) & 0x1f;
-		int localmark = (gcpack >>> (STACKMARKLEN)) & 0x01;
-		;
-		int stackmark = gcpack & 0x01;
-		// System.out.println("unicnt:"+unicnt);
-		// System.out.println("instr:"+instr);
-		// System.out.println("maxstack:"+maxstack);
-		// System.out.println("maxlocals:"+maxlocals);
-		// System.out.println("localmark:"+localmark);
-		// System.out.println("stackmark:"+stackmark);
-		int num = 1;
-		int indexbits = 0;
-		for (int i = 1; i < 32; i++) {
-			if (num < unicnt) {
-				num = (num << 1) | 1;
-			} else {
-				indexbits = i;
-				break;
+	/**
+	 * The number of operand slots of the caller frame below the arguments
+	 * of the called Java method. JOP pushes the constant pool entry of
+	 * new and anewarray and the type of newarray as an additional argument
+	 * of the JVM method. Native methods are instructions and have no frame.
+	 * 
+	 * @return the region or -1 if the instruction does not call Java code
+	 */
+	static int callRegion(Instruction ins, int depth, ConstantPoolGen cpg) {
+		if (ins instanceof InvokeInstruction) {
+			if (((InvokeInstruction) ins).getClassName(cpg).equals(
+					JOPizer.nativeClass)) {
+				return -1;
 			}
+			return depth - ins.consumeStack(cpg);
 		}
-
-		// reconstruct patterns from bitMap2
-		int patternindex2[] = new int[instr];
-		int unipattern[] = new int[unicnt];
-		int pos = 0;
-		for (int i = 0; i < instr; i++) {
-			patternindex2[i] = getBitsFromArray(bitMap2, pos, indexbits);
-			pos += indexbits;
+		if (ins instanceof NEW) {
+			return depth;
 		}
-		for (int i = 0; i < unicnt; i++) {
-			unipattern[i] = getBitsFromArray(bitMap2, pos,
-					(maxstack + maxlocals));
-			pos += (maxstack + maxlocals);
+		if (ins instanceof NEWARRAY || ins instanceof ANEWARRAY) {
+			return depth - 1;
 		}
+		return -1;
+	}
 
-		// bitmap1 patterns
-		int patterns1[] = new int[instr];
-		pos = 0;
-		for (int i = 0; i < instr; i++) {
-			patterns1[i] = getBitsFromArray(bitMap, pos, (maxstack + maxlocals));
-			pos += (maxstack + maxlocals);
-			if (patterns1[i] != unipattern[patternindex2[i]]) {
-				// System.out.println("mgci["+i+"]:"+bitStr(mcgi[i]));
-				// System.out.println("ocgi["+i+"]:"+bitStr(ocgi[i]));
-				// System.out.println("patterns1["+i+"]:"+bitStr(patterns1[i]));
-				// System.out.println("patternindex2["+i+"]:"+patternindex2[i]);
-				// System.out.println("unipattern[patternindex2[["+i+"]]:"+bitStr(unipattern[patternindex2[i]]));
-				compareresult = false;
-				break;
-			}
-		}
+	/**
+	 * Called with a pc (program counter) value which will be removed from the
+	 * mgci, ogci and call site structures. The <oode>instCnt</code> is also
+	 * decremented by one.
+	 * 
+	 * @param pc
+	 */
+	public void removePC(int pc) {
 
-		return compareresult;
-	}
+		ogci = remove(ogci, pc);
+		mgci = remove(mgci, pc);
+		site = remove(site, pc);
+		siteMap = remove(siteMap, pc);
 
-	// can return max 32 bits.
-	int getBitsFromArray(int array[], int pos, int len) {
-		if (len > 32) {
-			System.out.println("len>32");
-			System.exit(-1);
-		}
-		if ((pos + len) > array.length * 32) {
-			System.out.println("pos:" + pos + " len:" + len
-					+ " too big for array[].length:" + array.length);
+		// reduce instcnt accordingly
+		instCnt--;
+	}
 
-			System.exit(-1);
-		}
-		int res = 0;
-		for (int i = pos; i < pos + len; i++) {
-			int index = i / 32;
-			int offset = i % 32;
-			int word = array[index];
-			res |= (word >> offset) & 0x01;
-		}
-		return res;
+	static int[] remove(int[] a, int pc) {
+		int[] b = new int[a.length - 1];
+		System.arraycopy(a, 0, b, 0, pc);
+		System.arraycopy(a, pc + 1, b, pc, a.length - 1 - pc);
+		return b;
 	}
 
 	/**
@@ -1295,15 +883,7 @@ public class GCRTMethodInfo {
 	 * SetMethodInfo's visitJavaClass method.
 	 */
 	public int gcLength() {
-    int len = -1;
-    if(gcMethods != null && gcMethods.contains(method)){
-      len = 0;
-    } 
-    else {
-      len = dumpMethodGcis(null);
-    }
-   
-    return len;
+		return dumpMethodGcis(null);
 	}
 
 	/**
@@ -1350,6 +930,35 @@ class FrameFrame extends Frame {
 	}
 }
 
+/**
+ * The BCEL 5.2 ExecutionVisitor knows only int, float and String constants
+ * for ldc. Class files since Java 5 also load class constants.
+ */
+class AnExecutionVisitor extends ExecutionVisitor {
+
+	Frame frame;
+
+	ConstantPoolGen cpg;
+
+	public void setFrame(Frame f) {
+		frame = f;
+		super.setFrame(f);
+	}
+
+	public void setConstantPoolGen(ConstantPoolGen cpg) {
+		this.cpg = cpg;
+		super.setConstantPoolGen(cpg);
+	}
+
+	public void visitLDC(LDC o) {
+		if (cpg.getConstant(o.getIndex()) instanceof ConstantClass) {
+			frame.getStack().push(Type.CLASS);
+		} else {
+			super.visitLDC(o);
+		}
+	}
+}
+
 /**
  * BCEL throws an exception for the util.Dbg class because it overloads a field.
  * The choice (as described in the BCEL method comment for around line 2551 in
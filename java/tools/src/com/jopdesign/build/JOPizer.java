@@ -22,6 +22,7 @@
 package com.jopdesign.build;
 
 import com.jopdesign.common.bcel.CustomAttribute;
+import com.jopdesign.tools.JopImage;
 
 import java.io.FileOutputStream;
 import java.io.PrintWriter;
@@ -205,7 +206,8 @@ public class JOPizer extends OldAppInfo implements Serializable {
 			// How long is the <clinit> List?
 			int cntClinit = JopMethodInfo.clinitList.size();
 			// How long is the string table?
-			StringInfo.stringTableAddress = jz.pointerAddr+PTRS+cntClinit+1;
+			// +1 for the clinit count, +1 for the GC info
+			StringInfo.stringTableAddress = jz.pointerAddr+PTRS+cntClinit+2;
 
 			// Start of class info
 			jz.clinfoAddr = StringInfo.stringTableAddress + StringInfo.length;
@@ -225,6 +227,10 @@ public class JOPizer extends OldAppInfo implements Serializable {
 
 			jz.outLinkInfo.close();
 
+			// ... and the binary image for fast loading
+			JopImage.convert(jz.outFile, jz.outFile+".link.txt",
+					JopImage.binaryName(jz.outFile));
+
 		} catch(Exception e) { e.printStackTrace();}
 	}
 }
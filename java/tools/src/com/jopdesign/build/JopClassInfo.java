@@ -38,12 +38,13 @@ import org.apache.bcel.classfile.*;
  * <ul>
  * <li/> 0: instance size (class reference)
  * <li/> 1: pointer to static primitiv fields (if any)
- * <li/> 2: GC info field (one bit per field)
+ * <li/> 2: GC info, pointer to the reference field list (0 if none)
  * <li/> 3: pointer to super class
  * <li/> 4: pointer to interface table
  * <li/> 5+: method table, two words per entry,
  *           class reference (pointer back to class info),
  *           constant pool (cp),
+ *           optional reference field list (count, field indices),
  *           optional interface table
  * </ul>
  * <p>class variables are collected in one area for easier GC access of the
@@ -83,7 +84,7 @@ public class JopClassInfo extends OldClassInfo implements Serializable {
             // now get the MethodInfo back from the ClassInfo for
             // additional work.
             String methodId = method.getName() + method.getSignature();
-            OldMethodInfo mi = getITMethodInfo(methodId);
+            OldMethodInfo mi = this.cli.getMethodInfo(methodId);
             if (JOPizer.dumpMgci) {
                 // GCRT
                 new GCRTMethodInfo(mi, method);
@@ -170,6 +171,7 @@ public class JopClassInfo extends OldClassInfo implements Serializable {
     public ClFT clft;
     private int instSize;
     private int instGCinfo;
+    private int[] refFields;
 
     public List<Integer> cpoolUsed;
     public int cpoolArry[];
@@ -328,7 +330,8 @@ public class JopClassInfo extends OldClassInfo implements Serializable {
     public int setAddress(OldAppInfo ai, int addr) {
 
         int i;
-        instGCinfo = getGCInfo();
+        refFields = getRefFields();
+        instGCinfo = 0;
         classRefAddress = addr;
         // class head contains the instance size and
         // a pointer to the interface table
@@ -365,6 +368,12 @@ public class JopClassInfo extends OldClassInfo implements Serializable {
         // the final size of the cp plus the length field
         addr += cpoolUsed.size() + 1;
 
+        // the reference field list for the GC
+        if (refFields.length > 0) {
+            instGCinfo = addr;
+            addr += refFields.length + 1;
+        }
+
         // the optional interface table
         iftableAddress = 0;
 
@@ -432,21 +441,27 @@ public class JopClassInfo extends OldClassInfo implements Serializable {
     }
 
     /**
-     * generate GC info for the instance
+     * generate GC info for the instance: the sorted field indices
+     * of all reference fields, including the inherited ones
      */
-    private int getGCInfo() {
+    private int[] getRefFields() {
 
-        int gcInfo = 0;
+        TreeSet<Integer> refs = new TreeSet<Integer>();
         for (JopClassInfo clinf = this; clinf != null; clinf = (JopClassInfo) clinf.superClass) {
             ClFT ft = clinf.clft;
             for (int i = 0; i < ft.len; ++i) {
                 if (!ft.isStatic[i] & ft.isReference[i]) {
-                    gcInfo |= (1 << ft.idx[i]);
+                    refs.add(ft.idx[i]);
                 }
             }
         }
 
-        return gcInfo;
+        int[] list = new int[refs.size()];
+        int i = 0;
+        for (Integer idx : refs) {
+            list[i++] = idx;
+        }
+        return list;
     }
 
     public void addUsedConst(int idx, int len) {
@@ -529,6 +544,11 @@ public class JopClassInfo extends OldClassInfo implements Serializable {
                     if (clinfo == null) {
                         cpoolComments[pos] = "Problem with class: " + clname;
                         String type = clname.substring(clname.length()-2);
+                        if (clname.charAt(0)=='[') {
+                        	// element type for multianewarray, a reference
+                        	// array is type 1 (our convention)
+                        	cpoolArry[pos] = 1;
+                        }
                         if (type.charAt(0)=='[') {
                         	switch (type.charAt(1)) {
                         	case 'Z':
@@ -766,11 +786,6 @@ public class JopClassInfo extends OldClassInfo implements Serializable {
 
         out.println("\t\t" + staticValueVarAddress
                 + ",\t//\tpointer to static primitive fields");
-        if (instSize > 31) {
-            System.err.println("Error: Object of " + clazz.getClassName()
-                    + " to big! Size=" + instSize);
-            System.exit(-1);
-        }
         out.println("\t\t" + instGCinfo + ",\t//\tinstance GC info");
 
         String supname = "null";
@@ -839,6 +854,17 @@ public class JopClassInfo extends OldClassInfo implements Serializable {
             out.println("\t\t" + cpoolArry[i] + ",\t//\t" + cpoolComments[i]);
         }
 
+        if (instGCinfo != 0) {
+            out.println("//");
+            out.println("//\t" + instGCinfo + ": " + clazz.getClassName()
+                    + " reference fields");
+            out.println("//");
+            out.println("\t\t" + refFields.length + ",\t//\tcount");
+            for (i = 0; i < refFields.length; ++i) {
+                out.println("\t\t" + refFields[i] + ",");
+            }
+        }
+
         if (iftableAddress != 0 && !useSuperInterfaceTable) {
 
             out.println("//");
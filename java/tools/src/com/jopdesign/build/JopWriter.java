@@ -83,7 +83,10 @@ public class JopWriter {
 		}
 
 		dumpClinit();
-		out.println("//TODO: GC info");
+		out.println("//");
+		out.println("//\tGC info");
+		out.println("//");
+		out.println("\t\t"+(JOPizer.dumpMgci ? 1 : 0)+",\t//\tstack maps below the method code");
 
 		dumpStrings();
 
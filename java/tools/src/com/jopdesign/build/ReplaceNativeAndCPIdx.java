@@ -119,16 +119,16 @@ public class ReplaceNativeAndCPIdx extends JOPizerVisitor {
 				} else {
 					first.setInstruction(new NativeInstruction(opid, (short) 1));
 					((JOPizer) ai).outTxt.println("\t"+first.getPosition());
-					// since the new instruction is of length 1 and
-					// the replaced invokespecial was of length 3
-					// then we remove pc+2 and pc+1 from the MGCI info
-					if (JOPizer.dumpMgci) {
-						il.setPositions();
-						int pc = first.getPosition();
-						// important: take the high one first
-						GCRTMethodInfo.removePC(pc + 2, mi);
-						GCRTMethodInfo.removePC(pc + 1, mi);
-					}
+				}
+				// since the new instruction is of length 1 and
+				// the replaced invokespecial was of length 3
+				// then we remove pc+2 and pc+1 from the MGCI info
+				if (JOPizer.dumpMgci) {
+					il.setPositions();
+					int pc = first.getPosition();
+					// important: take the high one first
+					GCRTMethodInfo.removePC(pc + 2, mi);
+					GCRTMethodInfo.removePC(pc + 1, mi);
 				}
 			}
 
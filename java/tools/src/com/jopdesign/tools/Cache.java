@@ -20,6 +20,9 @@
 
 package com.jopdesign.tools;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.*;
 import java.text.*;
 
@@ -129,6 +132,41 @@ public class Cache {
 		return use.cacheRead;
 	}
 
+	/**
+	 * Snapshot of the cache content, see JopSnapshot.
+	 */
+	void save(DataOutputStream out) throws IOException {
+		out.writeInt(test.indexOf(use));
+		for (Cache c : test) {
+			c.saveState(out);
+		}
+	}
+
+	void restore(DataInputStream in) throws IOException {
+		use(in.readInt());
+		for (Cache c : test) {
+			c.restoreState(in);
+		}
+	}
+
+	void saveState(DataOutputStream out) throws IOException {
+		JopSnapshot.writeBytes(out, bc);
+		out.writeInt(memRead);
+		out.writeInt(memTrans);
+		out.writeInt(cacheRead);
+		out.writeBoolean(lastHit);
+		out.writeBoolean(flush);
+	}
+
+	void restoreState(DataInputStream in) throws IOException {
+		JopSnapshot.readBytes(in, bc);
+		memRead = in.readInt();
+		memTrans = in.readInt();
+		cacheRead = in.readInt();
+		lastHit = in.readBoolean();
+		flush = in.readBoolean();
+	}
+
 	boolean lastAccessWasHit() {
 		return use.lastHit;
 	}
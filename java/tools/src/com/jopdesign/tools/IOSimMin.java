@@ -22,6 +22,10 @@ package com.jopdesign.tools;
 
 import com.jopdesign.sys.Const;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 public class IOSimMin {
 	protected JopSim js;
 
@@ -35,9 +39,27 @@ public class IOSimMin {
 
 	protected int cpuId;
 	protected static int cpuCnt = 1;
-	protected static boolean startCMP = false;
+	protected static volatile boolean startCMP = false;
 	static boolean globalLock = false;
 
+	// Host-thread SMP: one thread per simulated core (JopSim -Dthreads=true).
+	// All cross-core coordination is done under the smp monitor.
+	static final Object smp = new Object();
+	static boolean threaded = false;
+	/** Lockstep quantum in bytecodes, 0 means free running */
+	static int quantum = 0;
+	/** Core holding the global lock, -1 when free */
+	static int lockOwner = -1;
+	/** Core that halted all other cores with IO_GC_HALT, -1 when none */
+	static volatile int haltOwner = -1;
+	/** Cores parked on a halt, on the lock, or before startCMP */
+	static int parked = 0;
+	/** Cores whose host thread is still running */
+	static int running = 0;
+	/** Core that owns the current lockstep quantum */
+	static volatile int turn = 0;
+	int quantumCnt;
+
 	int moncnt = 0;
 
 	protected int interrupt;
@@ -107,6 +129,9 @@ public class IOSimMin {
 			case Const.IO_CPUCNT:
 				val = cpuCnt;
 				break;
+			case Const.IO_MEM_SIZE:
+				val = JopSim.MAX_MEM;
+				break;
 			case SIM_CACHE_COST:
 				val = js.cacheCost;
 				break;
@@ -168,6 +193,9 @@ public class IOSimMin {
 			break;
 		case Const.IO_LOCK:
 			break;
+		case Const.IO_GC_HALT:
+			gcHalt(val != 0);
+			break;
 		case Const.IO_SIGNAL:
 			startCMP = (val != 0);
 			break;
@@ -188,7 +216,7 @@ public class IOSimMin {
 			js.objectCacheSim.flushCache();
 			break;
 		case Const.IO_DEADLINE:
-			js.localCnt += (val-((int) js.clkCnt));
+			js.waitDeadline(val);
 			break;
 		default:
 			System.out.println("Default write " + addr + " " + val);
@@ -197,6 +225,16 @@ public class IOSimMin {
 
 	boolean monEnter() {
 		intEna = false;
+		if (threaded) {
+			synchronized (smp) {
+				while (!JopSim.exit && (lockBusy() || haltedByOther())) {
+					block();
+				}
+				lockOwner = cpuId;
+				++moncnt;
+			}
+			return true;
+		}
 		if (moncnt == 0) {
 			if (globalLock) {
 				return false;
@@ -216,6 +254,131 @@ public class IOSimMin {
 		if (moncnt == 0) {
 			intEna = true;
 			globalLock = false;
+			if (threaded) {
+				synchronized (smp) {
+					lockOwner = -1;
+					smp.notifyAll();
+				}
+			}
+		}
+	}
+
+	boolean lockBusy() {
+		return lockOwner != -1 && lockOwner != cpuId;
+	}
+
+	/**
+	 * @return true when another core has halted this one (IO_GC_HALT)
+	 */
+	boolean haltedByOther() {
+		int h = haltOwner;
+		return h != -1 && h != cpuId;
+	}
+
+	/**
+	 * A core may not execute while another core halts it or, for
+	 * cores other than 0, before core 0 has released them.
+	 */
+	boolean mustWait() {
+		return haltedByOther() || (cpuId != 0 && !startCMP);
+	}
+
+	/**
+	 * IO_GC_HALT: in threaded mode a real barrier. The halting core
+	 * continues only when all other cores are parked.
+	 */
+	void gcHalt(boolean halt) {
+		synchronized (smp) {
+			if (halt) {
+				while (threaded && !JopSim.exit && haltedByOther()) {
+					block();
+				}
+				haltOwner = cpuId;
+				// in lockstep the other cores cannot run while we own the turn
+				while (threaded && quantum == 0 && !JopSim.exit && parked < running-1) {
+					waitSmp();
+				}
+			} else if (haltOwner == cpuId) {
+				haltOwner = -1;
+				smp.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Called by the core's host thread before each interpret().
+	 * Parks while halted and implements the lockstep quantum.
+	 */
+	void safepoint() {
+		if (quantum != 0) {
+			if (turn == cpuId && quantumCnt < quantum && !mustWait()) {
+				++quantumCnt;
+				return;
+			}
+			synchronized (smp) {
+				do {
+					passTurn();
+				} while (!JopSim.exit && mustWait());
+				++quantumCnt;
+			}
+		} else if (mustWait()) {
+			synchronized (smp) {
+				while (!JopSim.exit && mustWait()) {
+					block();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for another core to change the shared state: free running
+	 * cores park, in lockstep the turn goes to the next core.
+	 * Caller holds the smp monitor.
+	 */
+	private void block() {
+		if (quantum != 0) {
+			passTurn();
+		} else {
+			++parked;
+			smp.notifyAll();
+			waitSmp();
+			--parked;
+		}
+	}
+
+	/**
+	 * Hand the lockstep turn to the next core and wait for it to
+	 * come back. Caller holds the smp monitor.
+	 */
+	private void passTurn() {
+		if (turn == cpuId) {
+			turn = (cpuId+1) % cpuCnt;
+			smp.notifyAll();
+		}
+		while (!JopSim.exit && turn != cpuId) {
+			waitSmp();
+		}
+		quantumCnt = 0;
+	}
+
+	/**
+	 * Timed wait, so that a JVM exit on another core is noticed.
+	 */
+	private static void waitSmp() {
+		try {
+			smp.wait(10);
+		} catch (InterruptedException e) {
+			JopSim.exit();
+		}
+	}
+
+	void coreDone() {
+		synchronized (smp) {
+			--running;
+			if (turn == cpuId) {
+				turn = (cpuId+1) % cpuCnt;
+			}
+			smp.notifyAll();
 		}
 	}
 
@@ -241,6 +404,47 @@ public class IOSimMin {
 		return false;
 	}
 
+	/**
+	 * Snapshot of the state shared by all cores, see JopSnapshot.
+	 */
+	static void saveShared(DataOutputStream out) throws IOException {
+		out.writeBoolean(startCMP);
+		out.writeBoolean(globalLock);
+		out.writeInt(lockOwner);
+		out.writeInt(haltOwner);
+	}
+
+	static void restoreShared(DataInputStream in) throws IOException {
+		startCMP = in.readBoolean();
+		globalLock = in.readBoolean();
+		lockOwner = in.readInt();
+		haltOwner = in.readInt();
+	}
+
+	/**
+	 * Snapshot of the per core IO state: interrupts, timer and lock.
+	 * The wall clock based us counter itself is not part of it.
+	 */
+	void save(DataOutputStream out) throws IOException {
+		out.writeInt(moncnt);
+		out.writeInt(interrupt);
+		out.writeInt(mask);
+		out.writeBoolean(intEna);
+		out.writeBoolean(timeShot);
+		out.writeInt(nextTimerInt);
+		out.writeInt(intNr);
+	}
+
+	void restore(DataInputStream in) throws IOException {
+		moncnt = in.readInt();
+		interrupt = in.readInt();
+		mask = in.readInt();
+		intEna = in.readBoolean();
+		timeShot = in.readBoolean();
+		nextTimerInt = in.readInt();
+		intNr = in.readInt();
+	}
+
 	public int usCnt() {
 		return ((int) System.currentTimeMillis()) * 1000;
 	}
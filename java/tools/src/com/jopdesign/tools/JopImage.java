@@ -0,0 +1,197 @@
+/*
+  This file is part of JOP, the Java Optimized Processor
+    see <http://www.jopdesign.com/>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jopdesign.tools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The .jop memory image in text and binary form.
+ *
+ * The binary .jopb image is written by JOPizer next to the text .jop
+ * and can be memory mapped instead of tokenized. Layout, all ints big
+ * endian:
+ *
+ * <pre>
+ *	0:	MAGIC
+ *	4:	VERSION
+ *	8:	n, number of words
+ *	12:	m, length of the link section in bytes
+ *	16:	n words, the memory image as in the .jop file
+ *	16+4*n:	m bytes, the .link.txt symbol information (UTF-8)
+ * </pre>
+ */
+public class JopImage {
+
+	public static final int MAGIC = 0x4a4f5042;		// "JOPB"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 16;
+
+	/** the memory image */
+	public int[] words;
+	/** content of the .link.txt file, null when not available */
+	public String link;
+
+	/**
+	 * Name of the binary image for a .jop file.
+	 */
+	public static String binaryName(String jopFile) {
+		return jopFile.endsWith(".jop") ? jopFile+"b" : jopFile+".jopb";
+	}
+
+	public static boolean isBinary(String fileName) {
+		return fileName.endsWith(".jopb");
+	}
+
+	/**
+	 * Load a .jop text or .jopb binary image.
+	 */
+	public static JopImage load(String fileName) throws IOException {
+		return isBinary(fileName) ? map(fileName) : readText(fileName);
+	}
+
+	/**
+	 * Parse the text .jop file: decimal numbers, // and /* comments.
+	 */
+	public static JopImage readText(String fileName) throws IOException {
+
+		StreamTokenizer in = new StreamTokenizer(new BufferedReader(new FileReader(fileName)));
+
+		in.wordChars( '_', '_' );
+		in.wordChars( ':', ':' );
+		in.eolIsSignificant(true);
+		in.slashStarComments(true);
+		in.slashSlashComments(true);
+		in.lowerCaseMode(true);
+
+		int[] buf = new int[1024];
+		int cnt = 0;
+		while (in.nextToken()!=StreamTokenizer.TT_EOF) {
+			if (in.ttype == StreamTokenizer.TT_NUMBER) {
+				if (cnt==buf.length) {
+					int[] nb = new int[buf.length*2];
+					System.arraycopy(buf, 0, nb, 0, cnt);
+					buf = nb;
+				}
+				buf[cnt++] = (int) in.nval;
+			}
+		}
+
+		JopImage img = new JopImage();
+		img.words = new int[cnt];
+		System.arraycopy(buf, 0, img.words, 0, cnt);
+		return img;
+	}
+
+	/**
+	 * Map a .jopb binary image.
+	 */
+	public static JopImage map(String fileName) throws IOException {
+
+		RandomAccessFile f = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel ch = f.getChannel();
+			MappedByteBuffer bb = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			if (ch.size()<HEADER_SIZE || bb.getInt(0)!=MAGIC) {
+				throw new IOException(fileName+": not a .jopb image");
+			}
+			if (bb.getInt(4)!=VERSION) {
+				throw new IOException(fileName+": unsupported .jopb version "+bb.getInt(4));
+			}
+			int n = bb.getInt(8);
+			int m = bb.getInt(12);
+			if (HEADER_SIZE+4L*n+m > ch.size()) {
+				throw new IOException(fileName+": truncated .jopb image");
+			}
+
+			JopImage img = new JopImage();
+			img.words = new int[n];
+			bb.position(HEADER_SIZE);
+			bb.asIntBuffer().get(img.words);
+			if (m>0) {
+				byte[] b = new byte[m];
+				bb.position(HEADER_SIZE+4*n);
+				bb.get(b);
+				img.link = new String(b, "UTF-8");
+			}
+			return img;
+		} finally {
+			f.close();
+		}
+	}
+
+	/**
+	 * Write the binary image.
+	 */
+	public void write(String fileName) throws IOException {
+
+		byte[] lb = link==null ? new byte[0] : link.getBytes("UTF-8");
+		ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE+4*words.length+lb.length);
+		bb.putInt(MAGIC);
+		bb.putInt(VERSION);
+		bb.putInt(words.length);
+		bb.putInt(lb.length);
+		IntBuffer ib = bb.asIntBuffer();
+		ib.put(words);
+		bb.position(HEADER_SIZE+4*words.length);
+		bb.put(lb);
+
+		FileOutputStream out = new FileOutputStream(fileName);
+		try {
+			out.write(bb.array());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Convert a .jop text file and its link information (may be null)
+	 * to a .jopb binary image.
+	 */
+	public static void convert(String jopFile, String linkFile, String binFile) throws IOException {
+
+		JopImage img = readText(jopFile);
+		if (linkFile!=null && new File(linkFile).exists()) {
+			StringBuilder sb = new StringBuilder();
+			BufferedReader br = new BufferedReader(new FileReader(linkFile));
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					sb.append(line).append('\n');
+				}
+			} finally {
+				br.close();
+			}
+			img.link = sb.toString();
+		}
+		img.write(binFile);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length<1) {
+			System.out.println("usage: java JopImage file.jop [file.jopb]");
+			System.exit(-1);
+		}
+		String bin = args.length>1 ? args[1] : binaryName(args[0]);
+		convert(args[0], args[0]+".link.txt", bin);
+	}
+}
@@ -0,0 +1,221 @@
+/*
+  This file is part of JOP, the Java Optimized Processor
+    see <http://www.jopdesign.com/>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jopdesign.tools;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Sampling profiler for one simulated CPU (JopSim -Dprofile=file).
+ *
+ * Every interval simulated cycles the call stack is walked and the
+ * cycles, method cache load words and memory accesses since the last
+ * sample are charged to it. The flat profile goes to stdout, the
+ * collapsed stacks (one "a;b;c cycles" line per stack) to the file,
+ * ready for flamegraph.pl.
+ */
+public class JopProfiler {
+
+	static final int MAX_DEPTH = 64;
+
+	/** per method: self cycles, total cycles, M$ words, mem loads, mem stores */
+	static final int SELF = 0;
+	static final int TOTAL = 1;
+	static final int MCACHE = 2;
+	static final int RD = 3;
+	static final int WR = 4;
+
+	JopSim sim;
+	int interval;
+	long next;
+
+	long lastClk;
+	int lastCacheBytes;
+	int lastRd;
+	int lastWr;
+	long samples;
+
+	Map<Integer, long[]> flat = new HashMap<Integer, long[]>();
+	Map<String, long[]> stacks = new HashMap<String, long[]>();
+
+	int[] mps = new int[MAX_DEPTH];
+
+	JopProfiler(JopSim sim, int interval) {
+		this.sim = sim;
+		this.interval = interval;
+		next = interval;
+	}
+
+	/**
+	 * Start sampling from the current state, e.g. after a restore.
+	 */
+	void restart() {
+		lastClk = sim.clkCnt;
+		lastCacheBytes = sim.cache.use.memRead;
+		lastRd = sim.rdMemCnt;
+		lastWr = sim.wrMemCnt;
+		next = sim.clkCnt+interval;
+	}
+
+	/**
+	 * Charge everything since the last sample to the current call stack.
+	 */
+	void sample() {
+
+		long cycles = sim.clkCnt-lastClk;
+		int cacheWords = (sim.cache.use.memRead-lastCacheBytes)/4;
+		int rd = sim.rdMemCnt-lastRd;
+		int wr = sim.wrMemCnt-lastWr;
+		// the counters were reset (IO_PERFCNT) since the last sample
+		if (cacheWords<0) cacheWords = sim.cache.use.memRead/4;
+		if (rd<0) rd = sim.rdMemCnt;
+		if (wr<0) wr = sim.wrMemCnt;
+		lastClk = sim.clkCnt;
+		lastCacheBytes = sim.cache.use.memRead;
+		lastRd = sim.rdMemCnt;
+		lastWr = sim.wrMemCnt;
+		next = sim.clkCnt+interval;
+		++samples;
+
+		int depth = walk();
+		if (depth==0) {
+			return;
+		}
+
+		long[] c = counter(mps[0]);
+		c[SELF] += cycles;
+		c[MCACHE] += cacheWords;
+		c[RD] += rd;
+		c[WR] += wr;
+		// recursion shall count once for the inclusive time
+		for (int i=0; i<depth; ++i) {
+			boolean seen = false;
+			for (int j=0; j<i; ++j) {
+				if (mps[j]==mps[i]) {
+					seen = true;
+					break;
+				}
+			}
+			if (!seen) {
+				counter(mps[i])[TOTAL] += cycles;
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		if (JopSim.nrCpus>1) {
+			sb.append("CPU").append(sim.io.cpuId).append(';');
+		}
+		for (int i=depth-1; i>=0; --i) {
+			sb.append(name(mps[i]).replace(';', ','));
+			if (i!=0) {
+				sb.append(';');
+			}
+		}
+		String key = sb.toString();
+		long[] s = stacks.get(key);
+		if (s==null) {
+			s = new long[1];
+			stacks.put(key, s);
+		}
+		s[0] += cycles;
+	}
+
+	/**
+	 * Walk the JOP stack frames, innermost first, into mps[].
+	 * The frame of a method starts after its arguments and locals
+	 * with: old sp, return pc, old vp, old cp, old mp. Memory is
+	 * read directly to keep the access statistics untouched.
+	 */
+	int walk() {
+		int[] stack = sim.stack;
+		int mp = sim.mp;
+		int vp = sim.vp;
+		int depth = 0;
+		while (depth<MAX_DEPTH && mp>0 && mp<JopSim.MAX_MEM-1) {
+			mps[depth++] = mp;
+			int info = JopSim.mem[mp+1];
+			int locals = (info>>>5) & 0x01f;
+			int args = info & 0x01f;
+			int frame = vp+args+locals;
+			if (frame<0 || frame+4>=stack.length || frame+4>sim.sp) {
+				break;
+			}
+			mp = stack[frame+4];
+			vp = stack[frame+2];
+		}
+		return depth;
+	}
+
+	long[] counter(int mp) {
+		long[] c = flat.get(mp);
+		if (c==null) {
+			c = new long[WR+1];
+			flat.put(mp, c);
+		}
+		return c;
+	}
+
+	String name(int mp) {
+		String s = null;
+		if (sim.symbols!=null) {
+			s = sim.symbols.methodContaining(mp);
+		}
+		return s!=null ? s : "mp="+mp;
+	}
+
+	/**
+	 * Print the flat profile and append the collapsed stacks to fileName.
+	 */
+	void report(String fileName, boolean append) {
+
+		long sum = 0;
+		for (long[] c : flat.values()) {
+			sum += c[SELF];
+		}
+		List<Map.Entry<Integer, long[]>> l = new ArrayList<Map.Entry<Integer, long[]>>(flat.entrySet());
+		Collections.sort(l, new Comparator<Map.Entry<Integer, long[]>>() {
+			public int compare(Map.Entry<Integer, long[]> a, Map.Entry<Integer, long[]> b) {
+				long d = b.getValue()[SELF]-a.getValue()[SELF];
+				return d<0 ? -1 : d>0 ? 1 : 0;
+			}
+		});
+
+		System.out.println();
+		System.out.println("Profile CPU "+sim.io.cpuId+": "+samples+" samples every "+interval+" cycles");
+		System.out.println("   self %       self      total   M$ words    mem rd    mem wr  method");
+		for (int i=0; i<l.size() && i<30; ++i) {
+			long[] c = l.get(i).getValue();
+			System.out.printf("%8.2f %10d %10d %10d %9d %9d  %s%n",
+				sum>0 ? 100.0*c[SELF]/sum : 0.0, c[SELF], c[TOTAL], c[MCACHE], c[RD], c[WR],
+				name(l.get(i).getKey()));
+		}
+
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(fileName, append));
+			for (Map.Entry<String, long[]> e : stacks.entrySet()) {
+				out.println(e.getKey()+" "+e.getValue()[0]);
+			}
+			out.close();
+		} catch (IOException e) {
+			System.out.println("profile "+fileName+": "+e.getMessage());
+		}
+	}
+}
@@ -22,9 +22,10 @@ package com.jopdesign.tools;
 
 import com.jopdesign.sys.Const;
 
-import java.io.FileReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.StreamTokenizer;
 
 public class JopSim {
 
@@ -60,6 +61,7 @@ public class JopSim {
 		int getRdCnt() { return rdCnt; }
 		int getWrCnt() { return wrCnt; }
 		void reset() { rdCnt = wrCnt = 0; }
+		void set(int rd, int wr) { rdCnt = rd; wrCnt = wr; }
 	};
 
 	static final int MAX_MEM = 1024*1024/4;
@@ -74,10 +76,31 @@ public class JopSim {
 
 	static boolean log = false;
 	static int nrCpus = 1;
+	/**
+	 * Fast-forward mode: charge the cycles of a bytecode to clkCnt in
+	 * one step instead of idling through interpret() once per cycle.
+	 */
+	static boolean fastForward = false;
+	/**
+	 * Use the pre-decoded dispatch core (interpretDecoded()) instead
+	 * of the cycle-accounting switch core. Implies fastForward.
+	 */
+	static boolean predecode = false;
+	/** write a JopSnapshot when CPU 0 enters main() */
+	static String snapshotFile;
+	/** start from a JopSnapshot instead of booting */
+	static String restoreFile;
+	/** method struct of main() */
+	static int mainMp;
+	/** collapsed stack output of the profiler, null when not profiling */
+	static String profileFile;
+	static int profileInterval;
 
 	static JopSim js[];
 
 	static int[] mem_load = new int[MAX_MEM];
+	/** the loaded .jop or .jopb image */
+	static JopImage image;
 	static int[] mem = new int[MAX_MEM];
 	static int heap;
 	static int empty_heap;
@@ -111,6 +134,7 @@ public class JopSim {
 	// trace level: 0=off, 1=method entry/exit, 2=+fields+null warnings, 3=full bytecode
 	static int traceLevel = 0;
 	JopSymbols symbols;
+	JopProfiler profiler;
 
 	public static final int OBJECT_CACHE_ASSOC = 16;
 	public static final int OBJECT_CACHE_FIELDS = 32;
@@ -125,21 +149,10 @@ public class JopSim {
 			heap = 0;
 
 			try {
-				StreamTokenizer in = new StreamTokenizer(new FileReader(binaryFile));
-
-				in.wordChars( '_', '_' );
-				in.wordChars( ':', ':' );
-				in.eolIsSignificant(true);
-				in.slashStarComments(true);
-				in.slashSlashComments(true);
-				in.lowerCaseMode(true);
-
-				while (in.nextToken()!=StreamTokenizer.TT_EOF) {
-					if (in.ttype == StreamTokenizer.TT_NUMBER) {
-						mem_load[heap++] = (int) in.nval;
-					}
-				}
-
+				JopImage img = JopImage.load(binaryFile);
+				heap = img.words.length;
+				System.arraycopy(img.words, 0, mem_load, 0, heap);
+				image = img;
 			} catch (IOException e) {
 				System.out.println(e.getMessage());
 				System.exit(-1);
@@ -196,6 +209,7 @@ public class JopSim {
 		int ptr = readMem(1, Access.INTERN);
 		jjp = readMem(ptr+1, Access.INTERN);
 		jjhp = readMem(ptr+2, Access.INTERN);
+		mainMp = readMem(ptr+3, Access.INTERN);
 
 		invokestatic(ptr);
 	}
@@ -240,9 +254,9 @@ public class JopSim {
 		rdMemCnt++;
 		type.incrRd();
 
-		// translate addresses
+		// translate addresses of the already copied part
 		if (addr >= copy_src && addr < copy_src+copy_pos) {
-			addr = addr - copy_src + copy_pos;
+			addr = addr - copy_src + copy_dest;
 		}
 
 		if (addr >= Const.SCRATCHPAD_ADDRESS && addr <= Const.SCRATCHPAD_ADDRESS+MEM_TEST_OFF) {
@@ -331,7 +345,10 @@ public class JopSim {
 	}
 
 	void invokevirtual() throws JopSimRtsException {
-		int idx = readOpd16u();
+		invokevirtual(readOpd16u());
+	}
+
+	void invokevirtual(int idx) throws JopSimRtsException {
 		int off = readMem(cp+idx, Access.CONST);
 		int args = off & 0xff;
 		off >>>= 8;
@@ -399,6 +416,11 @@ public class JopSim {
 
 		pc = cache.invoke(start, len);
 
+		if (new_mp==mainMp && snapshotFile!=null && io.cpuId==0) {
+			JopSnapshot.save(snapshotFile);
+			snapshotFile = null;
+		}
+
 		// trace method entry
 		if (traceLevel >= 1 && symbols != null) {
 			String mName = symbols.methodContaining(new_mp);
@@ -450,7 +472,10 @@ public class JopSim {
 	}
 
 	void putstatic() {
-		int addr = readOpd16u();
+		putstatic(readOpd16u());
+	}
+
+	void putstatic(int addr) {
 		if (traceLevel >= 2 && symbols != null) {
 			String name = symbols.staticFieldName(addr);
 			if (name != null) {
@@ -461,7 +486,10 @@ public class JopSim {
 	}
 
 	void getstatic() {
-		int addr = readOpd16u();
+		getstatic(readOpd16u());
+	}
+
+	void getstatic(int addr) {
 		int val = readMem(addr, Access.STATIC);
 		if (traceLevel >= 2 && symbols != null) {
 			String name = symbols.staticFieldName(addr);
@@ -485,7 +513,10 @@ public class JopSim {
 	}
 
 	void putfield() {
-		int off = readOpd16u();
+		putfield(readOpd16u());
+	}
+
+	void putfield(int off) {
 		int val = stack[sp--];
 		int ref = stack[sp--];
 		checkNullPointer(ref);
@@ -494,7 +525,10 @@ public class JopSim {
 	}
 
 	void getfield() {
-		int off = readOpd16u();
+		getfield(readOpd16u());
+	}
+
+	void getfield(int off) {
 		int ref = stack[sp];
 		checkNullPointer(ref);
 		ref = readMem(ref, Access.HANDLE);
@@ -547,12 +581,241 @@ public class JopSim {
 		}
 	}
 
-	void interpret() {
+	/**
+	 * Execute one bytecode with the selected interpreter core.
+	 */
+	void step() {
+		if (predecode) {
+			interpretDecoded();
+		} else {
+			interpret();
+		}
+		if (profiler!=null && clkCnt>=profiler.next) {
+			profiler.sample();
+		}
+	}
 
-		int new_pc;
-		int ref, val, idx, val2;
-		int a, b, c, d;
-		long la, lb;
+	/**
+	 * Interpreter core on the pre-decoded method cache (see
+	 * VarBlockCache.decode()): one code[] load and one switch per
+	 * bytecode, operands and branch targets are already resolved.
+	 * Opcodes without a case here are decoded with length 1 and
+	 * executed by the switch core, which reads their operands.
+	 * No tracing and no per-cycle idling, the cycles of a bytecode
+	 * are charged in one step.
+	 */
+	void interpretDecoded() {
+
+		if (maxInstr!=0 && instrCnt>=maxInstr) {
+			exit=true;
+		}
+		++instrCnt;
+		if (sp > maxSp) maxSp = sp;
+
+		if (intExcept) {
+			intExcept = false;
+			++pc;
+			dispatch(SYS_EXC);
+			return;
+		}
+		if ((instrCnt&0xf)==0 && io.intPending()) {
+			++pc;
+			dispatch(SYS_INT);
+			return;
+		}
+
+		VarBlockCache vbc = (VarBlockCache) cache.use;
+		int w = vbc.code[pc & vbc.mask];
+		if (w==0) {
+			w = vbc.decode(pc);
+		}
+		int instr = w & 0xff;
+		int len = (w>>>8) & 0x0f;
+		int opd = w>>12;
+		pc += len;
+		vbc.cacheRead += len;
+		bcStat[instr]++;
+		clkCnt += bcTiming[instr];
+
+		int val;
+		try {
+			switch (instr) {
+				case 1 :		// aconst_null
+				case 3 :		// iconst_0
+					stack[++sp] = 0;
+					break;
+				case 2 :		// iconst_m1
+				case 4 :		// iconst_1
+				case 5 :		// iconst_2
+				case 6 :		// iconst_3
+				case 7 :		// iconst_4
+				case 8 :		// iconst_5
+					stack[++sp] = instr-3;
+					break;
+				case 16 :		// bipush
+				case 17 :		// sipush
+					stack[++sp] = opd;
+					break;
+				case 18 :		// ldc
+				case 19 :		// ldc_w
+					stack[++sp] = readMem(cp+opd, Access.CONST);
+					break;
+				case 21 :		// iload
+				case 23 :		// fload
+				case 25 :		// aload
+					stack[++sp] = stack[vp+opd];
+					break;
+				case 26 :		// iload_0
+				case 27 :		// iload_1
+				case 28 :		// iload_2
+				case 29 :		// iload_3
+					stack[++sp] = stack[vp+instr-26];
+					break;
+				case 42 :		// aload_0
+				case 43 :		// aload_1
+				case 44 :		// aload_2
+				case 45 :		// aload_3
+					stack[++sp] = stack[vp+instr-42];
+					break;
+				case 54 :		// istore
+				case 56 :		// fstore
+				case 58 :		// astore
+					stack[vp+opd] = stack[sp--];
+					break;
+				case 59 :		// istore_0
+				case 60 :		// istore_1
+				case 61 :		// istore_2
+				case 62 :		// istore_3
+					stack[vp+instr-59] = stack[sp--];
+					break;
+				case 75 :		// astore_0
+				case 76 :		// astore_1
+				case 77 :		// astore_2
+				case 78 :		// astore_3
+					stack[vp+instr-75] = stack[sp--];
+					break;
+				case 87 :		// pop
+					sp--;
+					break;
+				case 89 :		// dup
+					val = stack[sp];
+					stack[++sp] = val;
+					break;
+				case 96 :		// iadd
+					val = stack[sp-1] + stack[sp];
+					stack[--sp] = val;
+					break;
+				case 100 :		// isub
+					val = stack[sp-1] - stack[sp];
+					stack[--sp] = val;
+					break;
+				case 126 :		// iand
+					val = stack[sp-1] & stack[sp];
+					stack[--sp] = val;
+					break;
+				case 128 :		// ior
+					val = stack[sp-1] | stack[sp];
+					stack[--sp] = val;
+					break;
+				case 132 :		// iinc
+					stack[vp+(opd&0xff)] += opd>>8;
+					break;
+				case 153 :		// ifeq
+				case 198 :		// ifnull
+					if (stack[sp--] == 0) pc = opd;
+					break;
+				case 154 :		// ifne
+				case 199 :		// ifnonnull
+					if (stack[sp--] != 0) pc = opd;
+					break;
+				case 155 :		// iflt
+					if (stack[sp--] < 0) pc = opd;
+					break;
+				case 156 :		// ifge
+					if (stack[sp--] >= 0) pc = opd;
+					break;
+				case 157 :		// ifgt
+					if (stack[sp--] > 0) pc = opd;
+					break;
+				case 158 :		// ifle
+					if (stack[sp--] <= 0) pc = opd;
+					break;
+				case 159 :		// if_icmpeq
+				case 165 :		// if_acmpeq
+					sp -= 2;
+					if (stack[sp+1] == stack[sp+2]) pc = opd;
+					break;
+				case 160 :		// if_icmpne
+				case 166 :		// if_acmpne
+					sp -= 2;
+					if (stack[sp+1] != stack[sp+2]) pc = opd;
+					break;
+				case 161 :		// if_icmplt
+					sp -= 2;
+					if (stack[sp+1] < stack[sp+2]) pc = opd;
+					break;
+				case 162 :		// if_icmpge
+					sp -= 2;
+					if (stack[sp+1] >= stack[sp+2]) pc = opd;
+					break;
+				case 163 :		// if_icmpgt
+					sp -= 2;
+					if (stack[sp+1] > stack[sp+2]) pc = opd;
+					break;
+				case 164 :		// if_icmple
+					sp -= 2;
+					if (stack[sp+1] <= stack[sp+2]) pc = opd;
+					break;
+				case 167 :		// goto
+					pc = opd;
+					break;
+				case 176 :		// areturn
+				case 172 :		// ireturn
+					ireturn();
+					break;
+				case 177 :		// return
+					vreturn();
+					break;
+				case 178 :		// getstatic
+				case 224 :		// getstatic_ref
+					getstatic(opd);
+					break;
+				case 179 :		// putstatic
+					putstatic(opd);
+					break;
+				case 180 :		// getfield
+				case 226 :		// getfield_ref
+					getfield(opd);
+					break;
+				case 181 :		// putfield
+					putfield(opd);
+					break;
+				case 182 :		// invokevirtual
+					invokevirtual(opd);
+					break;
+				case 183 :		// invokespecial
+				case 184 :		// invokestatic
+					invokestatic(cp+opd);
+					break;
+				default:
+					execute(instr);
+			}
+		} catch(JopSimRtsException rtsEx) {
+			this.intExcept = true;
+			this.exceptReason = rtsEx.getReason();
+		}
+	}
+
+	/**
+	 * Execute SYS_INT or SYS_EXC from the pre-decoded core.
+	 */
+	private void dispatch(int instr) {
+		bcStat[instr]++;
+		clkCnt += bcTiming[instr];
+		execute(instr);
+	}
+
+	void interpret() {
 
 		if (localCnt>0) {
 			--localCnt;
@@ -579,9 +842,8 @@ public class JopSim {
 		}
 
 		bcStat[instr]++;
-		localCnt = bcTiming[instr];
-		clkCnt += localCnt;
-		--localCnt;
+		clkCnt += bcTiming[instr];
+		localCnt = fastForward ? 0 : bcTiming[instr]-1;
 
 		if (log) {
 			String spc = (pc-1)+" ";
@@ -598,6 +860,19 @@ public class JopSim {
 				" pc=" + (pc-1) + " " + JopInstr.name(instr));
 		}
 
+		execute(instr);
+	}
+
+	/**
+	 * Execute one bytecode, pc points to the first operand byte.
+	 */
+	void execute(int instr) {
+
+		int new_pc;
+		int ref, val, idx, val2;
+		int a, b, c, d;
+		long la, lb;
+
 		try {
 			switch (instr) {
 
@@ -1553,6 +1828,75 @@ public class JopSim {
 		}
 	}
 
+	/**
+	 * Stall this core until clkCnt reaches the deadline (IO_DEADLINE).
+	 */
+	void waitDeadline(int deadline) {
+		int delta = deadline-((int) clkCnt);
+		if (fastForward) {
+			if (delta > 0) clkCnt += delta;
+		} else {
+			localCnt += delta;
+		}
+	}
+
+	/**
+	 * Snapshot of this CPU, see JopSnapshot.
+	 */
+	void save(DataOutputStream out) throws IOException {
+		out.writeInt(pc);
+		out.writeInt(cp);
+		out.writeInt(vp);
+		out.writeInt(sp);
+		out.writeInt(mp);
+		out.writeInt(jjp);
+		out.writeInt(jjhp);
+		out.writeBoolean(intExcept);
+		out.writeInt(exceptReason);
+		out.writeInt(copy_src);
+		out.writeInt(copy_dest);
+		out.writeInt(copy_pos);
+		out.writeInt(instrCnt);
+		out.writeLong(clkCnt);
+		out.writeInt(localCnt);
+		out.writeInt(maxSp);
+		out.writeInt(cacheCost);
+		out.writeInt(rdMemCnt);
+		out.writeInt(wrMemCnt);
+		JopSnapshot.writeInts(out, bcStat);
+		JopSnapshot.writeInts(out, stack);
+		JopSnapshot.writeInts(out, scratchMem);
+		cache.save(out);
+		io.save(out);
+	}
+
+	void restore(DataInputStream in) throws IOException {
+		pc = in.readInt();
+		cp = in.readInt();
+		vp = in.readInt();
+		sp = in.readInt();
+		mp = in.readInt();
+		jjp = in.readInt();
+		jjhp = in.readInt();
+		intExcept = in.readBoolean();
+		exceptReason = in.readInt();
+		copy_src = in.readInt();
+		copy_dest = in.readInt();
+		copy_pos = in.readInt();
+		instrCnt = in.readInt();
+		clkCnt = in.readLong();
+		localCnt = in.readInt();
+		maxSp = in.readInt();
+		cacheCost = in.readInt();
+		rdMemCnt = in.readInt();
+		wrMemCnt = in.readInt();
+		JopSnapshot.readInts(in, bcStat);
+		JopSnapshot.readInts(in, stack);
+		JopSnapshot.readInts(in, scratchMem);
+		cache.restore(in);
+		io.restore(in);
+	}
+
 	void resetStat() {
 		for (Access a : Access.values()) {
 			a.reset();
@@ -1627,6 +1971,17 @@ public class JopSim {
 		log = System.getProperty("log", "false").equals("true");
 		nrCpus = Integer.parseInt(System.getProperty("cpucnt", "1"));
 		traceLevel = Integer.parseInt(System.getProperty("trace", "0"));
+		fastForward = System.getProperty("fast", "false").equals("true");
+		// tracing and logging need the switch core
+		predecode = System.getProperty("predecode", "false").equals("true")
+			&& !log && traceLevel==0;
+		if (predecode) fastForward = true;
+		snapshotFile = System.getProperty("snapshot");
+		restoreFile = System.getProperty("restore");
+		profileFile = System.getProperty("profile");
+		profileInterval = Integer.parseInt(System.getProperty("profile.interval", "100"));
+		IOSimMin.threaded = System.getProperty("threads", "false").equals("true");
+		IOSimMin.quantum = Integer.parseInt(System.getProperty("quantum", "0"));
 		js = new JopSim[nrCpus];
 
 		return 0;
@@ -1635,7 +1990,7 @@ public class JopSim {
 	public void runSim() {
 		cache.use(0);
 		start();
-		while(! exit) { interpret(); }
+		while(! exit) { step(); }
 		if (stopped) {
 			System.out.println();
 			System.out.println("JopSim stopped");
@@ -1651,11 +2006,39 @@ public class JopSim {
 				js[j].cache.use(i);
 				js[j].start();
 			}
+			if (restoreFile!=null) {
+				JopSnapshot.restore(restoreFile);
+				for (int j=0; j<nrCpus; ++j) {
+					if (js[j].profiler!=null) js[j].profiler.restart();
+				}
+			}
+			boolean cmpStarted = false;
+			if (IOSimMin.threaded && nrCpus != 1) {
+				runThreads();
+			}
 			while (!exit) {
-				js[0].interpret();
-				if (nrCpus != 1 && IOSimMin.startCMP) {
-					for (int j = 1; j < nrCpus; ++j) {
-						js[j].interpret();
+				if (fastForward && nrCpus != 1 && IOSimMin.startCMP) {
+					// other cores start at the time core 0 released them
+					if (!cmpStarted) {
+						for (int j = 1; j < nrCpus; ++j) {
+							js[j].clkCnt = js[0].clkCnt;
+						}
+						cmpStarted = true;
+					}
+					// keep the cores in simulated time order: the core
+					// that is furthest behind executes the next bytecode
+					JopSim next = null;
+					for (int j = 0; j < nrCpus; ++j) {
+						if (js[j].io.haltedByOther()) continue;
+						if (next == null || js[j].clkCnt < next.clkCnt) next = js[j];
+					}
+					next.step();
+				} else {
+					if (!js[0].io.haltedByOther()) js[0].step();
+					if (nrCpus != 1 && IOSimMin.startCMP) {
+						for (int j = 1; j < nrCpus; ++j) {
+							if (!js[j].io.haltedByOther()) js[j].step();
+						}
 					}
 				}
 			}
@@ -1668,6 +2051,52 @@ public class JopSim {
 				if (i==0) js[j].stat();
 				js[j].cache.stat();
 			}
+			if (i==0 && profileFile!=null) {
+				for (int j=0; j<nrCpus; ++j) {
+					js[j].profiler.sample();
+					js[j].profiler.report(profileFile, j!=0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run each core on its own host thread against the shared mem[].
+	 * Returns when the simulation exits.
+	 */
+	static void runThreads() {
+		Thread th[] = new Thread[nrCpus];
+		IOSimMin.running = nrCpus;
+		for (int j=0; j<nrCpus; ++j) {
+			final JopSim sim = js[j];
+			th[j] = new Thread("JopSim CPU "+j) {
+				public void run() {
+					sim.runCore();
+				}
+			};
+			th[j].start();
+		}
+		for (int j=0; j<nrCpus; ++j) {
+			try {
+				th[j].join();
+			} catch (InterruptedException e) {
+				exit = true;
+			}
+		}
+	}
+
+	void runCore() {
+		try {
+			while (!exit) {
+				io.safepoint();
+				if (exit) break;
+				step();
+			}
+		} catch (RuntimeException e) {
+			System.out.println("CPU "+io.cpuId+": "+e);
+			exit = true;
+		} finally {
+			io.coreDone();
 		}
 	}
 
@@ -1693,10 +2122,24 @@ public class JopSim {
 		}
 
 		if (binaryFile == null) {
-			System.out.println("usage: java JopSim [-link file.link.txt] file.jop [max instr]");
+			System.out.println("usage: java JopSim [-link file.link.txt] file.jop|file.jopb [max instr]");
+			System.out.println("       -Dfast=true  fast-forward bytecode timing");
+			System.out.println("       -Dpredecode=true  pre-decoded dispatch core (implies -Dfast)");
+			System.out.println("       -Dthreads=true  one host thread per CPU (-Dcpucnt=n)");
+			System.out.println("       -Dquantum=n  threads run in lockstep quanta of n bytecodes");
+			System.out.println("       -Dsnapshot=file  save the state when main() is entered");
+			System.out.println("       -Drestore=file  start from a saved state");
+			System.out.println("       -Dprofile=file  sampling profiler, collapsed stacks to file");
+			System.out.println("       -Dprofile.interval=n  sample every n cycles (default 100)");
 			System.exit(-1);
 		}
 
+		// the profiler wants names, use the link file next to the .jop
+		if (linkFile == null && profileFile != null && !JopImage.isBinary(binaryFile)
+				&& new File(binaryFile+".link.txt").exists()) {
+			linkFile = binaryFile+".link.txt";
+		}
+
 		// Load symbols if link file provided
 		JopSymbols symbols = null;
 		if (linkFile != null) {
@@ -1719,7 +2162,15 @@ public class JopSim {
 			}
 			io.setCpuId(i);
 			js[i] = new JopSim(binaryFile, io, maxInstr);
+			if (i==0 && symbols==null && (traceLevel>0 || profileFile!=null) && image.link!=null) {
+				// symbols embedded in the .jopb image
+				symbols = new JopSymbols();
+				symbols.loadText(image.link, binaryFile);
+			}
 			js[i].symbols = symbols;
+			if (profileFile!=null) {
+				js[i].profiler = new JopProfiler(js[i], profileInterval);
+			}
 		}
 
 		runSimulation();
@@ -0,0 +1,142 @@
+/*
+  This file is part of JOP, the Java Optimized Processor
+    see <http://www.jopdesign.com/>
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jopdesign.tools;
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Checkpoint of the complete simulator state: main memory and, per
+ * CPU, stack, scratchpad, registers, method cache and IO state.
+ *
+ * JopSim writes the snapshot (-Dsnapshot=file) when CPU 0 enters
+ * main(), after Startup.boot() and the class initializers. A run
+ * with -Drestore=file starts from that point instead of booting.
+ * The snapshot is only valid for the .jop image it was taken from.
+ */
+public class JopSnapshot {
+
+	static final int MAGIC = 0x4a4f5053;		// "JOPS"
+	static final int VERSION = 1;
+
+	/**
+	 * Checksum of the loaded program image.
+	 */
+	static int imageCrc() {
+		CRC32 crc = new CRC32();
+		for (int i=0; i<JopSim.empty_heap; ++i) {
+			int w = JopSim.mem_load[i];
+			crc.update(w>>>24);
+			crc.update(w>>>16);
+			crc.update(w>>>8);
+			crc.update(w);
+		}
+		return (int) crc.getValue();
+	}
+
+	public static void save(String fileName) {
+
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new DeflaterOutputStream(new FileOutputStream(fileName))));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(imageCrc());
+			out.writeInt(JopSim.nrCpus);
+
+			out.writeInt(JopSim.heap);
+			writeInts(out, JopSim.mem);
+			for (JopSim.Access a : JopSim.Access.values()) {
+				out.writeInt(a.getRdCnt());
+				out.writeInt(a.getWrCnt());
+			}
+			IOSimMin.saveShared(out);
+			for (int i=0; i<JopSim.nrCpus; ++i) {
+				JopSim.js[i].save(out);
+			}
+			out.close();
+		} catch (IOException e) {
+			System.out.println("snapshot "+fileName+": "+e.getMessage());
+			System.exit(-1);
+		}
+		System.out.println("Snapshot written to "+fileName);
+	}
+
+	public static void restore(String fileName) {
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new InflaterInputStream(new FileInputStream(fileName))));
+			if (in.readInt()!=MAGIC || in.readInt()!=VERSION) {
+				throw new IOException("not a JopSim snapshot");
+			}
+			if (in.readInt()!=imageCrc()) {
+				throw new IOException("snapshot was taken from a different .jop image");
+			}
+			if (in.readInt()!=JopSim.nrCpus) {
+				throw new IOException("snapshot was taken with a different CPU count");
+			}
+
+			JopSim.heap = in.readInt();
+			readInts(in, JopSim.mem);
+			for (JopSim.Access a : JopSim.Access.values()) {
+				a.set(in.readInt(), in.readInt());
+			}
+			IOSimMin.restoreShared(in);
+			for (int i=0; i<JopSim.nrCpus; ++i) {
+				JopSim.js[i].restore(in);
+			}
+			in.close();
+		} catch (IOException e) {
+			System.out.println("restore "+fileName+": "+e.getMessage());
+			System.exit(-1);
+		}
+		System.out.println("Snapshot restored from "+fileName);
+	}
+
+	static void writeInts(DataOutputStream out, int[] a) throws IOException {
+		out.writeInt(a.length);
+		for (int i=0; i<a.length; ++i) {
+			out.writeInt(a[i]);
+		}
+	}
+
+	static void readInts(DataInputStream in, int[] a) throws IOException {
+		if (in.readInt()!=a.length) {
+			throw new IOException("array size mismatch");
+		}
+		for (int i=0; i<a.length; ++i) {
+			a[i] = in.readInt();
+		}
+	}
+
+	static void writeBytes(DataOutputStream out, byte[] a) throws IOException {
+		out.writeInt(a.length);
+		out.write(a);
+	}
+
+	static void readBytes(DataInputStream in, byte[] a) throws IOException {
+		if (in.readInt()!=a.length) {
+			throw new IOException("array size mismatch");
+		}
+		in.readFully(a);
+	}
+}
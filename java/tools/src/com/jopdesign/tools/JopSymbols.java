@@ -9,6 +9,7 @@ package com.jopdesign.tools;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
@@ -23,26 +24,40 @@ public class JopSymbols {
 
 	public void load(String linkFile) {
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(linkFile));
-			String line;
-			while ((line = br.readLine()) != null) {
-				line = line.trim();
-				if (line.startsWith("static ")) {
-					parseStatic(line);
-				} else if (line.startsWith("bytecode ")) {
-					parseBytecode(line);
-				} else if (line.startsWith("-mtab ")) {
-					parseMtab(line);
-				}
-			}
-			br.close();
-			System.out.println("JopSymbols: loaded " + staticFields.size() +
-				" static fields, " + methods.size() + " methods from " + linkFile);
+			load(new BufferedReader(new FileReader(linkFile)), linkFile);
 		} catch (IOException e) {
 			System.out.println("JopSymbols: failed to load " + linkFile + ": " + e.getMessage());
 		}
 	}
 
+	/**
+	 * Load the link information embedded in a .jopb image.
+	 */
+	public void loadText(String link, String name) {
+		try {
+			load(new BufferedReader(new StringReader(link)), name);
+		} catch (IOException e) {
+			System.out.println("JopSymbols: failed to load " + name + ": " + e.getMessage());
+		}
+	}
+
+	private void load(BufferedReader br, String linkFile) throws IOException {
+		String line;
+		while ((line = br.readLine()) != null) {
+			line = line.trim();
+			if (line.startsWith("static ")) {
+				parseStatic(line);
+			} else if (line.startsWith("bytecode ")) {
+				parseBytecode(line);
+			} else if (line.startsWith("-mtab ")) {
+				parseMtab(line);
+			}
+		}
+		br.close();
+		System.out.println("JopSymbols: loaded " + staticFields.size() +
+			" static fields, " + methods.size() + " methods from " + linkFile);
+	}
+
 	// Format: "static com.jopdesign.sys.GC.mem_startI 29"
 	// The field name includes type descriptor suffix (I, Z, J, L..., [...)
 	private void parseStatic(String line) {
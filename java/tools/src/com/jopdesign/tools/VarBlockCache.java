@@ -20,9 +20,19 @@
 
 package com.jopdesign.tools;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 public class VarBlockCache extends Cache {
 
 	int[] ctag;
+	/**
+	 * Pre-decoded bytecodes for JopSim.interpretDecoded(), one word per
+	 * bytecode start: operand<<12 | length<<8 | opcode. 0 means not
+	 * decoded yet.
+	 */
+	int[] code;
 
 	int next = 0;
 	int currentBlock = 0;
@@ -43,6 +53,7 @@ public class VarBlockCache extends Cache {
 			mask |= 1;
 		}
 		bc = new byte[blockSize * numBlocks];
+		code = new int[blockSize * numBlocks];
 		ctag = new int[numBlocks];
 		resetCache();
 		stackNext = stkNxt;
@@ -112,6 +123,121 @@ public class VarBlockCache extends Cache {
 
 		memRead += len*4;
 		memTrans++;
+
+		if (JopSim.predecode) {
+			predecode(off, len*4);
+		}
+	}
+
+	/**
+	 * Decode a method just loaded into the cache. The walk stops at
+	 * variable length instructions (the switches), the rest of the
+	 * method is decoded on demand.
+	 */
+	void predecode(int off, int bytes) {
+		for (int i=0; i<bytes; ++i) {
+			code[(off+i) & mask] = 0;
+		}
+		for (int i=0; i<bytes; ) {
+			int len = JopInstr.len(bc[(off+i) & mask] & 0x0ff);
+			if (len<=0) {
+				break;
+			}
+			decode(off+i);
+			i += len;
+		}
+	}
+
+	/**
+	 * Decode the bytecode at addr into code[]. Only the opcodes that
+	 * JopSim.interpretDecoded() executes directly get their operand
+	 * resolved; all others are recorded with length 1 and their
+	 * operands are read by the switch core.
+	 */
+	int decode(int addr) {
+		int pos = addr & mask;
+		int instr = bc[pos] & 0x0ff;
+		int len = 1;
+		int opd = 0;
+		switch (instr) {
+			case 16 :		// bipush
+				opd = bc[(pos+1) & mask];
+				len = 2;
+				break;
+			case 18 :		// ldc
+			case 21 :		// iload
+			case 23 :		// fload
+			case 25 :		// aload
+			case 54 :		// istore
+			case 56 :		// fstore
+			case 58 :		// astore
+				opd = bc[(pos+1) & mask] & 0x0ff;
+				len = 2;
+				break;
+			case 17 :		// sipush
+				opd = (bc[(pos+1) & mask]<<8) | (bc[(pos+2) & mask] & 0x0ff);
+				len = 3;
+				break;
+			case 19 :		// ldc_w
+			case 178 :		// getstatic
+			case 179 :		// putstatic
+			case 180 :		// getfield
+			case 181 :		// putfield
+			case 182 :		// invokevirtual
+			case 183 :		// invokespecial
+			case 184 :		// invokestatic
+			case 224 :		// getstatic_ref
+			case 226 :		// getfield_ref
+				opd = ((bc[(pos+1) & mask]<<8) | (bc[(pos+2) & mask] & 0x0ff)) & 0x0ffff;
+				len = 3;
+				break;
+			case 132 :		// iinc
+				opd = (bc[(pos+2) & mask]<<8) | (bc[(pos+1) & mask] & 0x0ff);
+				len = 3;
+				break;
+			case 153 :		// ifeq
+			case 154 :		// ifne
+			case 155 :		// iflt
+			case 156 :		// ifge
+			case 157 :		// ifgt
+			case 158 :		// ifle
+			case 159 :		// if_icmpeq
+			case 160 :		// if_icmpne
+			case 161 :		// if_icmplt
+			case 162 :		// if_icmpge
+			case 163 :		// if_icmpgt
+			case 164 :		// if_icmple
+			case 165 :		// if_acmpeq
+			case 166 :		// if_acmpne
+			case 167 :		// goto
+			case 198 :		// ifnull
+			case 199 :		// ifnonnull
+				// absolute branch target in cache addresses
+				opd = (pos + ((bc[(pos+1) & mask]<<8) | (bc[(pos+2) & mask] & 0x0ff))) & mask;
+				len = 3;
+				break;
+		}
+		int w = (opd<<12) | (len<<8) | instr;
+		code[pos] = w;
+		return w;
+	}
+
+	void saveState(DataOutputStream out) throws IOException {
+		super.saveState(out);
+		JopSnapshot.writeInts(out, ctag);
+		out.writeInt(next);
+		out.writeInt(currentBlock);
+	}
+
+	void restoreState(DataInputStream in) throws IOException {
+		super.restoreState(in);
+		JopSnapshot.readInts(in, ctag);
+		next = in.readInt();
+		currentBlock = in.readInt();
+		// decoded again on demand
+		for (int i=0; i<code.length; ++i) {
+			code[i] = 0;
+		}
 	}
 
 	byte bc(int addr) {
@@ -108,7 +108,7 @@ object ConstGenerator {
          |	static final int CLASS_IFTAB = 4;
          |	/** Class info start relative to start of MTAB */
          |	public static final int MTAB2CLINFO = -5;
-         |	/** GC_INFO field relative to start of MTAB */
+         |	/** GC info (reference field list) relative to start of MTAB */
          |	static final int MTAB2GC_INFO = -3;
          |
          |	// ====================================================================
@@ -2,7 +2,8 @@ package jop.utils
 
 import scala.io.Source
 import scala.util.{Try, Using}
-import java.io.File
+import java.io.{File, RandomAccessFile}
+import java.nio.channels.FileChannel
 
 /**
  * JOP File Data Structure
@@ -48,6 +49,7 @@ case class JopFileData(
  *
  * File Formats:
  * - .jop: Comma-separated decimal values with // comments
+ * - .jopb: Binary image written by JOPizer next to the .jop (memory mapped)
  * - mem_rom.dat: Space/newline-separated decimal values
  * - mem_ram.dat: Space/newline-separated decimal values
  * - jtbl.vhd: VHDL switch statement (requires special parsing)
@@ -66,10 +68,13 @@ object JopFileLoader {
    * Note: Values are treated as unsigned 32-bit integers. Negative values
    * (from signed interpretation) are converted to positive BigInt.
    *
+   * A path ending in .jopb is loaded with loadJopbFile.
+   *
    * @param filepath Path to .jop file
    * @return JopFileData with parsed words and comments
    */
   def loadJopFile(filepath: String): JopFileData = {
+    if (filepath.endsWith(".jopb")) return loadJopbFile(filepath)
     require(new File(filepath).exists(), s"JOP file not found: $filepath")
     val lines = Using(Source.fromFile(filepath))(_.getLines().toSeq).getOrElse(Seq.empty)
 
@@ -109,6 +114,41 @@ object JopFileLoader {
     JopFileData(words, length, comments)
   }
 
+  /**
+   * Load a .jopb file (binary image, see com.jopdesign.tools.JopImage)
+   *
+   * Format (big endian):
+   *   0x4a4f5042 ("JOPB"), version, word count n, link section length m
+   *   n words of the memory image
+   *   m bytes of .link.txt content (ignored here)
+   *
+   * The file is memory mapped instead of tokenized. No comments are
+   * available, comments are empty strings.
+   *
+   * @param filepath Path to .jopb file
+   * @return JopFileData with the image words
+   */
+  def loadJopbFile(filepath: String): JopFileData = {
+    require(new File(filepath).exists(), s"JOPB file not found: $filepath")
+    Using.resource(new RandomAccessFile(filepath, "r")) { f =>
+      val ch = f.getChannel
+      val bb = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size())
+      require(ch.size() >= 16 && bb.getInt(0) == 0x4a4f5042, s"Not a .jopb image: $filepath")
+      require(bb.getInt(4) == 1, s"Unsupported .jopb version ${bb.getInt(4)}: $filepath")
+      val n = bb.getInt(8)
+      require(16L + 4L * n <= ch.size(), s"Truncated .jopb image: $filepath")
+
+      val raw = new Array[Int](n)
+      bb.position(16)
+      bb.asIntBuffer().get(raw)
+      // Convert to unsigned 32-bit representation
+      val words = raw.toSeq.map(w => BigInt(w & 0xFFFFFFFFL))
+      val length = if (n > 0) raw(0) else 0
+
+      JopFileData(words, length, Seq.fill(n)(""))
+    }
+  }
+
   /**
    * Load mem_rom.dat (microcode ROM data)
    *